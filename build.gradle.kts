@@ -12,8 +12,17 @@ plugins {
 }
 
 java {
-    sourceCompatibility = JavaVersion.VERSION_17
-    targetCompatibility = JavaVersion.VERSION_17
+    // Allows building and running with a newer JDK, such as 21 for virtual threads,
+    // with `-PjavaToolchain=21`. The output still targets 17 either way.
+    val javaToolchain = providers.gradleProperty("javaToolchain")
+    if (javaToolchain.isPresent) {
+        toolchain {
+            languageVersion.set(JavaLanguageVersion.of(javaToolchain.get()))
+        }
+    } else {
+        sourceCompatibility = JavaVersion.VERSION_17
+        targetCompatibility = JavaVersion.VERSION_17
+    }
 }
 
 application {
@@ -55,7 +64,27 @@ spotless {
 }
 
 tasks {
+    withType<JavaCompile> {
+        options.release.set(17)
+    }
     test {
         useJUnitPlatform()
     }
+    // Records the classes a warmed up server loads into a dynamic AppCDS archive beside the
+    // shadow jar. Only used by the same JDK with the jar at the same path, see the README.
+    register<JavaExec>("cdsArchive") {
+        group = "distribution"
+        description = "Creates an AppCDS archive for the shadow jar."
+        val jar = shadowJar.flatMap { it.archiveFile }
+        val archive = jar.map { it.asFile.resolveSibling(it.asFile.nameWithoutExtension + ".jsa") }
+        inputs.file(jar)
+        outputs.file(archive)
+        classpath(jar)
+        mainClass.set(application.mainClass)
+        args("--train")
+        workingDir = temporaryDir
+        jvmArgumentProviders.add(CommandLineArgumentProvider {
+            listOf("-XX:ArchiveClassesAtExit=${archive.get()}")
+        })
+    }
 }
@@ -6,20 +6,27 @@
 
 package gay.ampflower.maven;// Created 2022-04-02T01:36:51
 
-import org.bouncycastle.crypto.generators.Argon2BytesGenerator;
 import org.bouncycastle.crypto.params.Argon2Parameters;
 import org.bouncycastle.util.Arrays;
 
+import java.time.Duration;
+
 import static gay.ampflower.maven.Utils.*;
 
 /**
- * Argon2 wrapper around Bouncy Castle's implementation.
+ * Argon2 wrapper around Bouncy Castle's parameters, hashing with
+ * {@link Argon2Engine}.
  *
  * @author Ampflower
  * @since 0.0.0
  **/
 public final class Argon2 {
 
+	/**
+	 * Least memory calibration goes down to, in KiB.
+	 */
+	private static final int MIN_MEMORY = 1024;
+
 	/**
 	 * Generates a new password hash by using a strong Argon2id instance with the
 	 * given secret.
@@ -32,9 +39,18 @@ public final class Argon2 {
 	 * @throws AssertionError When encoded password fails internal sanity check.
 	 */
 	public static String generate(byte[] password, byte[] secret) {
+		return generate(password, secret, Cost.DEFAULT);
+	}
+
+	/**
+	 * Generates a new password hash at the given cost.
+	 *
+	 * @see #generate(byte[], byte[])
+	 */
+	static String generate(byte[] password, byte[] secret, Cost cost) {
 		byte[] salt = new byte[8], output = new byte[32];
 		getStrongRandom().nextBytes(salt);
-		var params = initArgon2id(secret, salt);
+		var params = initArgon2id(secret, salt, cost);
 		execute(params, password, output);
 		var encoded = encode(params, output);
 		if (!verify(encoded, password, secret)) {
@@ -81,9 +97,9 @@ public final class Argon2 {
 	 * @param out      The output array.
 	 */
 	static void execute(Argon2Parameters params, byte[] password, byte[] out) {
-		var gen = new Argon2BytesGenerator();
-		gen.init(params);
-		gen.generateBytes(password, out);
+		try (var engine = Argon2Engine.acquire()) {
+			engine.generate(params, password, out);
+		}
 	}
 
 	/**
@@ -160,18 +176,94 @@ public final class Argon2 {
 		return sb.toString();
 	}
 
-	static Argon2Parameters initArgon2id(byte[] secret, byte[] salt) {
+	static Argon2Parameters initArgon2id(byte[] secret, byte[] salt, Cost cost) {
 		var builder = new Argon2Parameters.Builder(Argon2Parameters.ARGON2_id);
 		builder.withVersion(Argon2Parameters.ARGON2_VERSION_13);
-		builder.withMemoryAsKB(8192);
-		builder.withIterations(15);
-		builder.withParallelism(2);
+		builder.withMemoryAsKB(cost.memory());
+		builder.withIterations(cost.iterations());
+		builder.withParallelism(cost.lanes());
 		builder.withSecret(secret);
 		builder.withSalt(salt);
 		Arrays.clear(salt);
 		return builder.build();
 	}
 
+	/**
+	 * Finds the cost that takes about the target time on this machine, using as
+	 * much memory as allowed. Memory is halved until a single pass fits within
+	 * the target, then as many passes are made as fit.
+	 *
+	 * @param target How long verifying may take.
+	 * @param memory How much memory each hash may use, in bytes.
+	 * @param lanes  How many lanes each hash has.
+	 * @return The cost to hash with.
+	 */
+	static Cost calibrate(Duration target, long memory, int lanes) {
+		final long goal = target.toNanos();
+		int kib = (int) Math.max(MIN_MEMORY, Math.min(Integer.MAX_VALUE, memory / 1024));
+		var random = getRandom();
+		byte[] password = new byte[16], secret = new byte[64];
+		random.nextBytes(password);
+		random.nextBytes(secret);
+		while (true) {
+			long one = time(new Cost(kib, 1, lanes), password, secret);
+			long three = time(new Cost(kib, 3, lanes), password, secret);
+			// The first pass also pays for filling the initial blocks and such.
+			long pass = Math.max(1, (three - one) / 2);
+			long base = Math.max(0, one - pass);
+			if (one <= goal || kib <= MIN_MEMORY) {
+				return new Cost(kib, (int) Math.max(1, Math.min(Integer.MAX_VALUE, (goal - base) / pass)), lanes);
+			}
+			kib = Math.max(MIN_MEMORY, kib / 2);
+		}
+	}
+
+	/**
+	 * @return The fastest of a few hashes at the cost, in nanoseconds.
+	 */
+	private static long time(Cost cost, byte[] password, byte[] secret) {
+		var params = initArgon2id(secret, new byte[8], cost);
+		var output = new byte[32];
+		long best = Long.MAX_VALUE;
+		// The first is thrown away, as it's likely to run cold.
+		for (int i = 0; i < 4; i++) {
+			long start = System.nanoTime();
+			execute(params, password, output);
+			long time = System.nanoTime() - start;
+			if (i > 0) {
+				best = Math.min(best, time);
+			}
+		}
+		return best;
+	}
+
 	record Argon2Decoded(Argon2Parameters parameters, byte[] hash) {
 	}
+
+	/**
+	 * The cost new hashes are generated at, as Argon2id v1.3.
+	 *
+	 * @param memory     Memory used in KiB.
+	 * @param iterations How many passes are made over the memory.
+	 * @param lanes      How many lanes the memory is split into.
+	 */
+	record Cost(int memory, int iterations, int lanes) {
+		static final Cost DEFAULT = new Cost(8192, 15, 2);
+
+		/**
+		 * @param hash An Argon2-compliant string.
+		 * @return true if the hash was generated at this cost.
+		 */
+		boolean matches(String hash) {
+			var params = decode(hash, null).parameters;
+			return params.getType() == Argon2Parameters.ARGON2_id
+					&& params.getVersion() == Argon2Parameters.ARGON2_VERSION_13 && params.getMemory() == memory
+					&& params.getIterations() == iterations && params.getLanes() == lanes;
+		}
+
+		@Override
+		public String toString() {
+			return "m=" + memory + ",t=" + iterations + ",p=" + lanes;
+		}
+	}
 }
@@ -0,0 +1,579 @@
+/* Copyright 2023 Ampflower
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package gay.ampflower.maven;
+
+import org.bouncycastle.crypto.digests.Blake2bDigest;
+import org.bouncycastle.crypto.params.Argon2Parameters;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Argon2 as specified by RFC 9106, producing the same output as Bouncy
+ * Castle's {@code Argon2BytesGenerator}, but filling a {@code long[]} arena
+ * that is kept between hashes rather than allocating every block anew.
+ * <p>
+ * Lanes are filled in parallel, a slice at a time, by whichever helper threads
+ * are idle alongside the calling thread. Busy helpers are never waited for, as
+ * the calling thread fills whatever lanes nobody has taken.
+ * <p>
+ * Engines are pooled, up to one per thread running Argon2. Everything an
+ * engine held is zeroed before it's returned to the pool.
+ *
+ * @author Ampflower
+ * @since 0.1.0
+ */
+final class Argon2Engine implements AutoCloseable {
+	private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class,
+			ByteOrder.LITTLE_ENDIAN);
+
+	/**
+	 * Words in a block of 1 KiB.
+	 */
+	private static final int BLOCK = 128;
+	private static final int SYNC_POINTS = 4;
+	private static final int MIN_OUTPUT = 4;
+
+	/**
+	 * Engines not in use. Guarded by itself.
+	 */
+	private static final ArrayDeque<Argon2Engine> pool = new ArrayDeque<>();
+	private static volatile int retain = Runtime.getRuntime().availableProcessors();
+	/**
+	 * Fills lanes alongside the threads running Argon2, or null to fill lanes one
+	 * after another.
+	 */
+	private static volatile ThreadPoolExecutor helpers = helpers(Runtime.getRuntime().availableProcessors() - 1);
+
+	/**
+	 * Every block of the hash, lane after lane. Grown as needed, never shrunk.
+	 */
+	private long[] memory = new long[0];
+	/**
+	 * How much of {@link #memory} the current hash uses.
+	 */
+	private int used;
+	/**
+	 * Working blocks of each lane, as lanes may be filled at once.
+	 */
+	private Scratch[] scratch = new Scratch[0];
+	private final byte[] bytes = new byte[BLOCK * Long.BYTES];
+	private final byte[] digest = new byte[64];
+	private final byte[] word = new byte[4];
+	private final Blake2bDigest blake2b = new Blake2bDigest(512);
+
+	private int lanes;
+	private int segmentLength;
+	private int laneLength;
+	private int passes;
+	private int type;
+	private int version;
+
+	private Argon2Engine() {
+	}
+
+	/**
+	 * @return An engine from the pool, or a new one if the pool is empty. To be
+	 *         closed once done.
+	 */
+	static Argon2Engine acquire() {
+		synchronized (pool) {
+			var engine = pool.poll();
+			if (engine != null) {
+				return engine;
+			}
+		}
+		return new Argon2Engine();
+	}
+
+	/**
+	 * Sets how many engines the pool keeps, each with an arena as large as the
+	 * largest hash it ran.
+	 */
+	static void retain(int engines) {
+		retain = engines;
+		synchronized (pool) {
+			while (pool.size() > engines) {
+				pool.poll();
+			}
+		}
+	}
+
+	/**
+	 * Sets how many threads may help fill lanes, shared by every engine.
+	 *
+	 * @param threads How many helpers, or 0 to fill lanes one after another.
+	 */
+	static void help(int threads) {
+		var previous = helpers;
+		helpers = helpers(threads);
+		if (previous != null) {
+			previous.shutdown();
+		}
+	}
+
+	private static ThreadPoolExecutor helpers(int threads) {
+		if (threads <= 0) {
+			return null;
+		}
+		var counter = new AtomicInteger();
+		// Handed off only to an idle helper, else left to the calling thread.
+		return new ThreadPoolExecutor(0, threads, 30, TimeUnit.SECONDS, new SynchronousQueue<>(), task -> {
+			var thread = new Thread(task, "argon2 lanes-" + counter.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		}, new ThreadPoolExecutor.DiscardPolicy());
+	}
+
+	/**
+	 * Zeroes the engine and returns it to the pool, if there's room.
+	 */
+	@Override
+	public void close() {
+		Arrays.fill(memory, 0, used, 0L);
+		used = 0;
+		synchronized (pool) {
+			if (pool.size() < retain) {
+				pool.push(this);
+			}
+		}
+	}
+
+	/**
+	 * Generates the hash using the parameters and password, outputting to out.
+	 *
+	 * @param params   The Argon2 parameters.
+	 * @param password The password to hash.
+	 * @param out      The output array, at least 4 bytes.
+	 * @throws IllegalArgumentException If the parameters or output are out of
+	 *                                  range.
+	 */
+	void generate(Argon2Parameters params, byte[] password, byte[] out) {
+		if (out.length < MIN_OUTPUT) {
+			throw new IllegalArgumentException("Output length less than " + MIN_OUTPUT);
+		}
+		lanes = params.getLanes();
+		if (lanes < 1 || lanes > 0xFFFFFF) {
+			throw new IllegalArgumentException("Lanes out of range: " + lanes);
+		}
+		passes = params.getIterations();
+		if (passes < 1) {
+			throw new IllegalArgumentException("Iterations less than 1: " + passes);
+		}
+		type = params.getType();
+		version = params.getVersion();
+
+		// Rounded down to a whole number of segments, no less than two blocks each.
+		int blocks = Math.max(params.getMemory(), 2 * SYNC_POINTS * lanes);
+		segmentLength = blocks / (lanes * SYNC_POINTS);
+		laneLength = segmentLength * SYNC_POINTS;
+		blocks = laneLength * lanes;
+		if (blocks > Integer.MAX_VALUE / BLOCK) {
+			throw new IllegalArgumentException("Memory out of range: " + params.getMemory());
+		}
+		used = blocks * BLOCK;
+		if (memory.length < used) {
+			memory = null;
+			memory = new long[used];
+		}
+		if (scratch.length < lanes) {
+			final int from = scratch.length;
+			scratch = Arrays.copyOf(scratch, lanes);
+			for (int i = from; i < lanes; i++) {
+				scratch[i] = new Scratch();
+			}
+		}
+
+		try {
+			initialize(params, password, out.length, blocks);
+			final var helpers = lanes > 1 ? Argon2Engine.helpers : null;
+			for (int pass = 0; pass < passes; pass++) {
+				for (int slice = 0; slice < SYNC_POINTS; slice++) {
+					if (helpers == null) {
+						for (int lane = 0; lane < lanes; lane++) {
+							fillSegment(pass, slice, lane, blocks);
+						}
+					} else {
+						new Slice(pass, slice, blocks).fill(helpers);
+					}
+				}
+			}
+			finish(out);
+		} finally {
+			for (int i = 0; i < lanes; i++) {
+				scratch[i].clear();
+			}
+			Arrays.fill(bytes, (byte) 0);
+			Arrays.fill(digest, (byte) 0);
+		}
+	}
+
+	/**
+	 * Computes H0 and fills the first two blocks of every lane from it.
+	 */
+	private void initialize(Argon2Parameters params, byte[] password, int outLength, int blocks) {
+		var salt = params.getSalt();
+		var secret = params.getSecret();
+		var additional = params.getAdditional();
+		try {
+			blake2b.reset();
+			update(lanes);
+			update(outLength);
+			update(params.getMemory());
+			update(passes);
+			update(version);
+			update(type);
+			update(password);
+			update(salt);
+			update(secret);
+			update(additional);
+			blake2b.doFinal(digest, 0);
+		} finally {
+			org.bouncycastle.util.Arrays.clear(salt);
+			org.bouncycastle.util.Arrays.clear(secret);
+			org.bouncycastle.util.Arrays.clear(additional);
+		}
+
+		// H0 || LE32(block) || LE32(lane)
+		var seed = new byte[72];
+		System.arraycopy(digest, 0, seed, 0, 64);
+		try {
+			for (int lane = 0; lane < lanes; lane++) {
+				le32(seed, 68, lane);
+				for (int block = 0; block < 2; block++) {
+					le32(seed, 64, block);
+					hPrime(bytes, bytes.length, seed, seed.length);
+					final int offset = (lane * laneLength + block) * BLOCK;
+					for (int i = 0; i < BLOCK; i++) {
+						memory[offset + i] = (long) LONGS.get(bytes, i * Long.BYTES);
+					}
+				}
+			}
+		} finally {
+			Arrays.fill(seed, (byte) 0);
+		}
+	}
+
+	private void fillSegment(int pass, int slice, int lane, int blocks) {
+		final var scratch = this.scratch[lane];
+		final long[] input = scratch.input, address = scratch.address;
+		final boolean independent = type == Argon2Parameters.ARGON2_i
+				|| (type == Argon2Parameters.ARGON2_id && pass == 0 && slice < SYNC_POINTS / 2);
+		if (independent) {
+			Arrays.fill(input, 0L);
+			input[0] = pass;
+			input[1] = lane;
+			input[2] = slice;
+			input[3] = blocks;
+			input[4] = passes;
+			input[5] = type;
+		}
+
+		int start = 0;
+		if (pass == 0 && slice == 0) {
+			// The first two blocks are already filled.
+			start = 2;
+			if (independent) {
+				nextAddresses(scratch);
+			}
+		}
+
+		int current = lane * laneLength + slice * segmentLength + start;
+		int previous = current % laneLength == 0 ? current + laneLength - 1 : current - 1;
+		final boolean xor = version != Argon2Parameters.ARGON2_VERSION_10 && pass != 0;
+
+		for (int index = start; index < segmentLength; index++, current++, previous++) {
+			if (current % laneLength == 1) {
+				previous = current - 1;
+			}
+			final long random;
+			if (independent) {
+				if (index % BLOCK == 0) {
+					nextAddresses(scratch);
+				}
+				random = address[index % BLOCK];
+			} else {
+				random = memory[previous * BLOCK];
+			}
+
+			int refLane = (int) ((random >>> 32) % lanes);
+			if (pass == 0 && slice == 0) {
+				refLane = lane;
+			}
+			final int refIndex = referenceIndex(pass, slice, index, random & 0xFFFFFFFFL, refLane == lane);
+			fill(scratch, memory, previous * BLOCK, memory, (refLane * laneLength + refIndex) * BLOCK, memory,
+					current * BLOCK, xor);
+		}
+	}
+
+	/**
+	 * Maps the pseudo-random value onto a block of the reference lane, biased
+	 * towards recent blocks.
+	 */
+	private int referenceIndex(int pass, int slice, int index, long random, boolean sameLane) {
+		long area;
+		if (pass == 0) {
+			if (slice == 0) {
+				area = index - 1;
+			} else if (sameLane) {
+				area = (long) slice * segmentLength + index - 1;
+			} else {
+				area = (long) slice * segmentLength + (index == 0 ? -1 : 0);
+			}
+		} else if (sameLane) {
+			area = laneLength - segmentLength + index - 1;
+		} else {
+			area = laneLength - segmentLength + (index == 0 ? -1 : 0);
+		}
+
+		long relative = (random * random) >>> 32;
+		relative = area - 1 - ((area * relative) >>> 32);
+
+		long start = 0;
+		if (pass != 0 && slice != SYNC_POINTS - 1) {
+			start = (long) (slice + 1) * segmentLength;
+		}
+		return (int) ((start + relative) % laneLength);
+	}
+
+	private static void nextAddresses(Scratch scratch) {
+		final long[] input = scratch.input, address = scratch.address;
+		input[6]++;
+		fill(scratch, Scratch.ZERO, 0, input, 0, address, 0, false);
+		fill(scratch, Scratch.ZERO, 0, address, 0, address, 0, false);
+	}
+
+	/**
+	 * The compression function G, writing {@code G(x, y)} to out, or xoring it
+	 * into out.
+	 */
+	private static void fill(Scratch scratch, long[] x, int xOffset, long[] y, int yOffset, long[] out,
+			int outOffset, boolean xor) {
+		final long[] r = scratch.r, tmp = scratch.tmp;
+		for (int i = 0; i < BLOCK; i++) {
+			r[i] = x[xOffset + i] ^ y[yOffset + i];
+		}
+		if (xor) {
+			for (int i = 0; i < BLOCK; i++) {
+				tmp[i] = r[i] ^ out[outOffset + i];
+			}
+		} else {
+			System.arraycopy(r, 0, tmp, 0, BLOCK);
+		}
+		for (int i = 0; i < 8; i++) {
+			final int b = i * 16;
+			permute(r, b, b + 1, b + 2, b + 3, b + 4, b + 5, b + 6, b + 7, b + 8, b + 9, b + 10, b + 11, b + 12, b + 13,
+					b + 14, b + 15);
+		}
+		for (int i = 0; i < 8; i++) {
+			final int b = i * 2;
+			permute(r, b, b + 1, b + 16, b + 17, b + 32, b + 33, b + 48, b + 49, b + 64, b + 65, b + 80, b + 81, b + 96,
+					b + 97, b + 112, b + 113);
+		}
+		for (int i = 0; i < BLOCK; i++) {
+			out[outOffset + i] = tmp[i] ^ r[i];
+		}
+	}
+
+	/**
+	 * Blake2b's round with multiplication, over the 16 words at the indices.
+	 */
+	private static void permute(long[] v, int v0, int v1, int v2, int v3, int v4, int v5, int v6, int v7, int v8,
+			int v9, int v10, int v11, int v12, int v13, int v14, int v15) {
+		mix(v, v0, v4, v8, v12);
+		mix(v, v1, v5, v9, v13);
+		mix(v, v2, v6, v10, v14);
+		mix(v, v3, v7, v11, v15);
+
+		mix(v, v0, v5, v10, v15);
+		mix(v, v1, v6, v11, v12);
+		mix(v, v2, v7, v8, v13);
+		mix(v, v3, v4, v9, v14);
+	}
+
+	private static void mix(long[] v, int a, int b, int c, int d) {
+		quarter(v, a, b, d, 32);
+		quarter(v, c, d, b, 24);
+		quarter(v, a, b, d, 16);
+		quarter(v, c, d, b, 63);
+	}
+
+	private static void quarter(long[] v, int x, int y, int z, int rotation) {
+		long a = v[x], b = v[y];
+		a += b + 2 * (a & 0xFFFFFFFFL) * (b & 0xFFFFFFFFL);
+		v[x] = a;
+		v[z] = Long.rotateRight(v[z] ^ a, rotation);
+	}
+
+	/**
+	 * Xors the last block of every lane together and hashes it to the output.
+	 */
+	private void finish(byte[] out) {
+		final long[] r = scratch[0].r;
+		final int last = laneLength - 1;
+		System.arraycopy(memory, last * BLOCK, r, 0, BLOCK);
+		for (int lane = 1; lane < lanes; lane++) {
+			final int offset = (lane * laneLength + last) * BLOCK;
+			for (int i = 0; i < BLOCK; i++) {
+				r[i] ^= memory[offset + i];
+			}
+		}
+		for (int i = 0; i < BLOCK; i++) {
+			LONGS.set(bytes, i * Long.BYTES, r[i]);
+		}
+		hPrime(out, out.length, bytes, bytes.length);
+	}
+
+	/**
+	 * The variable length hash function H' of the specification.
+	 */
+	private void hPrime(byte[] out, int outLength, byte[] in, int inLength) {
+		if (outLength <= 64) {
+			var blake2b = outLength == 64 ? this.blake2b : new Blake2bDigest(outLength * 8);
+			blake2b.reset();
+			le32(word, 0, outLength);
+			blake2b.update(word, 0, word.length);
+			blake2b.update(in, 0, inLength);
+			blake2b.doFinal(out, 0);
+			return;
+		}
+
+		blake2b.reset();
+		le32(word, 0, outLength);
+		blake2b.update(word, 0, word.length);
+		blake2b.update(in, 0, inLength);
+		blake2b.doFinal(digest, 0);
+		System.arraycopy(digest, 0, out, 0, 32);
+
+		final int rounds = (outLength + 31) / 32 - 2;
+		int position = 32;
+		for (int i = 2; i <= rounds; i++, position += 32) {
+			blake2b.reset();
+			blake2b.update(digest, 0, digest.length);
+			blake2b.doFinal(digest, 0);
+			System.arraycopy(digest, 0, out, position, 32);
+		}
+
+		final int remaining = outLength - 32 * rounds;
+		var blake2b = remaining == 64 ? this.blake2b : new Blake2bDigest(remaining * 8);
+		blake2b.reset();
+		blake2b.update(digest, 0, digest.length);
+		blake2b.doFinal(out, position);
+	}
+
+	private void update(int value) {
+		le32(word, 0, value);
+		blake2b.update(word, 0, word.length);
+	}
+
+	/**
+	 * Hashes the length of the array then the array itself, an absent array being
+	 * empty.
+	 */
+	private void update(byte[] array) {
+		if (array == null) {
+			update(0);
+			return;
+		}
+		update(array.length);
+		blake2b.update(array, 0, array.length);
+	}
+
+	private static void le32(byte[] array, int offset, int value) {
+		array[offset] = (byte) value;
+		array[offset + 1] = (byte) (value >>> 8);
+		array[offset + 2] = (byte) (value >>> 16);
+		array[offset + 3] = (byte) (value >>> 24);
+	}
+
+	/**
+	 * One slice of every lane, filled by whoever claims each lane first.
+	 */
+	private final class Slice implements Runnable {
+		private final int pass;
+		private final int slice;
+		private final int blocks;
+		/**
+		 * Kept apart from the engine's, as a helper may only get to a slice once the
+		 * engine has moved on to another hash.
+		 */
+		private final int lanes = Argon2Engine.this.lanes;
+		private final Thread caller = Thread.currentThread();
+		private final AtomicInteger claimed = new AtomicInteger();
+		private final AtomicInteger finished = new AtomicInteger();
+		private volatile Throwable failure;
+
+		Slice(int pass, int slice, int blocks) {
+			this.pass = pass;
+			this.slice = slice;
+			this.blocks = blocks;
+		}
+
+		/**
+		 * Offers the other lanes to idle helpers, fills whatever lanes are left, then
+		 * waits for helpers still filling theirs.
+		 */
+		void fill(ThreadPoolExecutor helpers) {
+			for (int i = 1; i < lanes && helpers.getActiveCount() < helpers.getMaximumPoolSize(); i++) {
+				helpers.execute(this);
+			}
+			run();
+			while (finished.get() < lanes) {
+				LockSupport.park(this);
+			}
+			var failure = this.failure;
+			if (failure instanceof RuntimeException runtime) {
+				throw runtime;
+			} else if (failure instanceof Error error) {
+				throw error;
+			}
+		}
+
+		@Override
+		public void run() {
+			int lane;
+			while ((lane = claimed.getAndIncrement()) < lanes) {
+				try {
+					fillSegment(pass, slice, lane, blocks);
+				} catch (RuntimeException | Error e) {
+					failure = e;
+				} finally {
+					if (finished.incrementAndGet() == lanes) {
+						LockSupport.unpark(caller);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Working blocks of the compression function and address generation.
+	 */
+	private static final class Scratch {
+		private static final long[] ZERO = new long[BLOCK];
+
+		private final long[] r = new long[BLOCK];
+		private final long[] tmp = new long[BLOCK];
+		private final long[] input = new long[BLOCK];
+		private final long[] address = new long[BLOCK];
+
+		void clear() {
+			Arrays.fill(r, 0L);
+			Arrays.fill(tmp, 0L);
+			Arrays.fill(input, 0L);
+			Arrays.fill(address, 0L);
+		}
+	}
+}
@@ -0,0 +1,126 @@
+/* Copyright 2023 Ampflower
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package gay.ampflower.maven;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HexFormat;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Content-addressed store of every file published, deduplicating identical
+ * uploads by hard linking them to the same blob.
+ * <p>
+ * Blobs are named by their SHA-256 and are never modified, only linked to
+ * and eventually removed, so sharing them between published files is safe.
+ * A blob linked to by nothing else is reclaimed by {@link #sweep()}.
+ *
+ * @author Ampflower
+ * @since 0.1.0
+ */
+final class Blobs {
+	private static final Logger logger = LoggerFactory.getLogger(Blobs.class);
+
+	private final Path root;
+	private final AtomicBoolean sweeping = new AtomicBoolean();
+	private volatile boolean supported = true;
+
+	/**
+	 * @param root The directory to store blobs within, on the same filesystem as
+	 *             the repository.
+	 */
+	Blobs(Path root) {
+		this.root = root;
+	}
+
+	/**
+	 * Links a complete, not yet published file to the blob of its content,
+	 * either by replacing it with a link to an existing blob, or by adding it
+	 * as a new blob.
+	 * <p>
+	 * Failures are logged rather than thrown, the file is left as-is if it can't
+	 * be deduplicated.
+	 *
+	 * @param file   The file to deduplicate.
+	 * @param sha256 The SHA-256 of the file.
+	 */
+	void intern(Path file, byte[] sha256) {
+		if (!supported) {
+			return;
+		}
+		var hex = HexFormat.of().formatHex(sha256);
+		var blob = root.resolve(hex.substring(0, 2)).resolve(hex);
+		try {
+			Files.createDirectories(blob.getParent());
+			// Two attempts, as the sweep may reclaim the blob in the meantime.
+			for (int i = 0; i < 2; i++) {
+				if (Files.exists(blob)) {
+					var link = file.resolveSibling(file.getFileName() + ".link");
+					try {
+						Files.deleteIfExists(link);
+						Files.createLink(link, blob);
+					} catch (NoSuchFileException ignored) {
+						continue;
+					}
+					Files.move(link, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+					return;
+				}
+				try {
+					Files.createLink(blob, file);
+					return;
+				} catch (FileAlreadyExistsException ignored) {
+					// Another upload of the same content won, link to theirs instead.
+				}
+			}
+		} catch (UnsupportedOperationException | IOException e) {
+			if (e instanceof UnsupportedOperationException) {
+				supported = false;
+			}
+			logger.warn("Unable to deduplicate {}", file, e);
+		}
+	}
+
+	/**
+	 * Removes every blob that no published file links to anymore.
+	 * <p>
+	 * A file linked to a blob just as it's removed keeps its content, it's just
+	 * no longer deduplicated against later uploads.
+	 */
+	void sweep() {
+		if (!supported || !sweeping.compareAndSet(false, true)) {
+			return;
+		}
+		long start = System.nanoTime();
+		int removed = 0;
+		try (var stream = Files.newDirectoryStream(root)) {
+			for (var fanout : stream) {
+				try (var blobs = Files.newDirectoryStream(fanout)) {
+					for (var blob : blobs) {
+						if ((Integer) Files.getAttribute(blob, "unix:nlink") <= 1) {
+							Files.deleteIfExists(blob);
+							removed++;
+						}
+					}
+				}
+			}
+		} catch (NoSuchFileException ignored) {
+			// Nothing has been stored yet.
+		} catch (UnsupportedOperationException | IllegalArgumentException | IOException e) {
+			logger.warn("Failed to sweep {}", root, e);
+		} finally {
+			sweeping.set(false);
+		}
+		logger.info("Swept {} unused blobs from {} in {}ms", removed, root, (System.nanoTime() - start) / 1_000_000);
+	}
+}
@@ -0,0 +1,61 @@
+/* Copyright 2023 Ampflower
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package gay.ampflower.maven;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The checksums Maven and Gradle upload alongside every file.
+ *
+ * @author Ampflower
+ * @since 0.1.0
+ */
+enum Checksum {
+	MD5("md5", "MD5"), SHA1("sha1", "SHA-1"), SHA256("sha256", "SHA-256"), SHA512("sha512", "SHA-512");
+
+	static final Checksum[] values = values();
+
+	private final String suffix;
+	private final String algorithm;
+
+	Checksum(String extension, String algorithm) {
+		this.suffix = '.' + extension;
+		this.algorithm = algorithm;
+	}
+
+	/**
+	 * @return The suffix of the checksum's sidecar file, including the dot.
+	 */
+	String suffix() {
+		return suffix;
+	}
+
+	/**
+	 * @return A new instance of the digest for this checksum.
+	 */
+	MessageDigest digest() {
+		try {
+			return MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(algorithm + " is required to be supported.", e);
+		}
+	}
+
+	/**
+	 * @param name The name of the file.
+	 * @return The checksum the file is a sidecar of, if any.
+	 */
+	static Checksum of(String name) {
+		for (var checksum : values) {
+			if (name.endsWith(checksum.suffix)) {
+				return checksum;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,90 @@
+/* Copyright 2023 Ampflower
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package gay.ampflower.maven;
+
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Every {@link Checksum} of a single file.
+ *
+ * @author Ampflower
+ * @since 0.1.0
+ */
+final class Checksums {
+	private static final HexFormat hex = HexFormat.of();
+
+	private final byte[][] values;
+
+	private Checksums(byte[][] values) {
+		this.values = values;
+	}
+
+	/**
+	 * @return The raw digest of the given checksum.
+	 */
+	byte[] get(Checksum checksum) {
+		return values[checksum.ordinal()].clone();
+	}
+
+	/**
+	 * @return The digest of the given checksum as lowercase hex, as written to
+	 *         sidecar files.
+	 */
+	String hex(Checksum checksum) {
+		return hex.formatHex(values[checksum.ordinal()]);
+	}
+
+	/**
+	 * @return Every digest as lowercase hex, by the extension of its sidecar.
+	 */
+	Map<String, String> hex() {
+		var map = new LinkedHashMap<String, String>();
+		for (var checksum : Checksum.values) {
+			map.put(checksum.suffix().substring(1), hex(checksum));
+		}
+		return map;
+	}
+
+	/**
+	 * Computes every checksum of the given data in one pass.
+	 */
+	static Checksums of(byte[] data) {
+		var digester = new Digester();
+		digester.update(data, 0, data.length);
+		return digester.finish();
+	}
+
+	/**
+	 * Computes every checksum of streamed data in one pass.
+	 */
+	static final class Digester {
+		private final MessageDigest[] digests = new MessageDigest[Checksum.values.length];
+
+		Digester() {
+			for (var checksum : Checksum.values) {
+				digests[checksum.ordinal()] = checksum.digest();
+			}
+		}
+
+		void update(byte[] data, int offset, int length) {
+			for (var digest : digests) {
+				digest.update(data, offset, length);
+			}
+		}
+
+		Checksums finish() {
+			var values = new byte[digests.length][];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = digests[i].digest();
+			}
+			return new Checksums(values);
+		}
+	}
+}
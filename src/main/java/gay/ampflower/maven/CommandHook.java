@@ -0,0 +1,74 @@
+/* Copyright 2023 Ampflower
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package gay.ampflower.maven;
+
+import gay.ampflower.maven.hook.UploadEvent;
+import gay.ampflower.maven.hook.UploadHook;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a shell command for every event, configured in the {@code [hooks]}
+ * section of {@code config.ini}.
+ * <p>
+ * The event is passed by environment variables: {@code MAVEN_HOST},
+ * {@code MAVEN_USER}, {@code MAVEN_PATH}, {@code MAVEN_SIZE}, and a
+ * {@code MAVEN_} variable per digest such as {@code MAVEN_SHA256}.
+ *
+ * @author Ampflower
+ * @since 0.1.0
+ */
+final class CommandHook implements UploadHook {
+	private final String name;
+	private final String command;
+	private final Duration timeout;
+
+	/**
+	 * @param name    The name of the hook, for logging.
+	 * @param command The command, run by {@code /bin/sh}.
+	 * @param timeout How long the command may run before it's killed.
+	 */
+	CommandHook(String name, String command, Duration timeout) {
+		this.name = name;
+		this.command = command;
+		this.timeout = timeout;
+	}
+
+	@Override
+	public void accept(UploadEvent event) throws IOException, InterruptedException {
+		var builder = new ProcessBuilder("/bin/sh", "-c", command).redirectErrorStream(true)
+				.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+		var environment = builder.environment();
+		if (event.host() != null) {
+			environment.put("MAVEN_HOST", event.host());
+		}
+		environment.put("MAVEN_USER", event.user());
+		environment.put("MAVEN_PATH", event.path());
+		environment.put("MAVEN_SIZE", Long.toString(event.size()));
+		for (var digest : event.digests().entrySet()) {
+			environment.put("MAVEN_" + digest.getKey().toUpperCase(Locale.ROOT), digest.getValue());
+		}
+		var process = builder.start();
+		process.getOutputStream().close();
+		if (!process.waitFor(timeout.toNanos(), TimeUnit.NANOSECONDS)) {
+			process.destroyForcibly();
+			throw new IOException("Timed out after " + timeout);
+		}
+		int exit = process.exitValue();
+		if (exit != 0) {
+			throw new IOException("Exited with " + exit);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
@@ -15,28 +15,65 @@ import java.nio.CharBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
-
 /**
  * @author Ampflower
  * @since 0.1.0
  **/
 public class Config {
 	private static final Logger logger = LoggerFactory.getLogger(Config.class);
+	/**
+	 * Directory within each host's repository reserved for the server's own use.
+	 * Uploads into it are refused, and it should be hidden from the webserver.
+	 */
+	static final String INTERNAL = ".maven.sock";
 	private static final Path migrate = Path.of("migrate.ini");
-	private final Path config, secrets, users;
+	private final Path store, config, secrets, users;
 	Path socket;
 	final Map<String, Host> hosts = new HashMap<>();
+	final Tuning server = new Tuning();
+	/**
+	 * Upload bandwidth per user, in bytes per second. {@code *} applies to every
+	 * user without their own entry.
+	 */
+	final Map<String, String> bandwidth = new LinkedHashMap<>();
+	/**
+	 * Share of upload slots per host relative to the others, defaulting to 1.
+	 */
+	final Map<String, String> weights = new LinkedHashMap<>();
+	/**
+	 * Largest upload accepted per host, in bytes. {@code *} applies to every host
+	 * without their own entry.
+	 */
+	final Map<String, String> maxUpload = new LinkedHashMap<>();
+	/**
+	 * Which builds of snapshots to keep per host, as a {@link Retention}.
+	 * {@code *} applies to every host without their own entry.
+	 */
+	final Map<String, String> retention = new LinkedHashMap<>();
+	/**
+	 * Shell commands run after every upload by name.
+	 */
+	final Map<String, String> hooks = new LinkedHashMap<>();
+	/**
+	 * Cost of new password hashes, as {@code memory}, {@code iterations} and
+	 * {@code lanes}. Missing entries fall back to {@link Argon2.Cost#DEFAULT}.
+	 */
+	final Map<String, String> argon2 = new LinkedHashMap<>();
+	/**
+	 * Sockets listened on in addition to {@link #socket}, by name.
+	 */
+	final Map<String, Listener> listeners = new LinkedHashMap<>();
 
 	Config(Path store) {
+		this.store = store;
 		this.config = store.resolve("config.ini");
 		this.secrets = store.resolve(".secrets");
 		this.users = store.resolve(".users");
@@ -50,8 +87,9 @@ public class Config {
 			var path = host.getValue().path;
 			if (path == null) {
 				logger.warn("No directory specified for {}", host.getKey());
-			} else if (!Files.isDirectory(path)) {
-				Files.createDirectories(path);
+			} else {
+				Files.createDirectories(host.getValue().staging());
+				Files.createDirectories(host.getValue().sessions());
 			}
 		}
 		if (socket == null) {
@@ -59,6 +97,32 @@ public class Config {
 		}
 	}
 
+	/**
+	 * Removes uploads left in staging by a previous run of the server.
+	 * <p>
+	 * Must only be called before the server starts accepting uploads.
+	 */
+	public void sweepStaging() throws IOException {
+		for (var host : hosts.values()) {
+			if (host.path == null) {
+				continue;
+			}
+			try (var stream = Files.newDirectoryStream(host.staging())) {
+				for (var orphan : stream) {
+					logger.info("Removing orphaned upload {}", orphan);
+					Files.deleteIfExists(orphan);
+				}
+			}
+			// Sessions only live in memory, nothing left can ever be committed.
+			try (var stream = Files.newDirectoryStream(host.sessions())) {
+				for (var orphan : stream) {
+					logger.info("Removing orphaned session {}", orphan);
+					Utils.deleteRecursively(orphan);
+				}
+			}
+		}
+	}
+
 	public void read() throws IOException {
 		hosts.clear();
 		if (Files.notExists(config)) {
@@ -79,7 +143,14 @@ public class Config {
 					key = null;
 				}
 				final var map = authMap.computeIfAbsent(key, ($) -> new HashMap<>());
-				hosts.put(key, new Host(Utils.DECODER.decode(value), map));
+				final var generations = new HashMap<String, Long>();
+				var stored = authMap.get(Host.generations(key));
+				if (stored != null) {
+					for (var entry : stored.entrySet()) {
+						generations.put(entry.getKey(), Long.parseUnsignedLong(entry.getValue().strip()));
+					}
+				}
+				hosts.put(key, new Host(null, Utils.DECODER.decode(value), map, generations));
 			});
 		}
 
@@ -91,6 +162,35 @@ public class Config {
 					} else {
 						logger.warn("Unknown entry {}={} from header section", key, value);
 					}
+				} else if ("server".equals(section)) {
+					server.set(key, value);
+				} else if ("bandwidth".equals(section)) {
+					Utils.parseSize(value);
+					bandwidth.put(key, value);
+				} else if ("weights".equals(section)) {
+					Integer.parseUnsignedInt(value.strip());
+					weights.put(key, value);
+				} else if ("max_upload".equals(section)) {
+					Utils.parseSize(value);
+					maxUpload.put(key, value);
+				} else if ("retention".equals(section)) {
+					Retention.parse(value);
+					retention.put(key, value);
+				} else if ("hooks".equals(section)) {
+					hooks.put(key, value);
+				} else if ("argon2".equals(section)) {
+					if ("memory".equals(key)) {
+						Utils.parseSize(value);
+					} else if ("iterations".equals(key) || "lanes".equals(key)) {
+						Integer.parseUnsignedInt(value.strip());
+					} else {
+						logger.warn("Unknown entry {}={} for argon2", key, value);
+						return;
+					}
+					argon2.put(key, value);
+				} else if (section.startsWith(Listener.SECTION)) {
+					var name = section.substring(Listener.SECTION.length());
+					listeners.computeIfAbsent(name, Listener::new).set(key, value);
 				} else if ("hosts".equals(section)) {
 					if ("*".equals(key)) {
 						key = null;
@@ -108,6 +208,34 @@ public class Config {
 		}
 	}
 
+	/**
+	 * Reads the config for a reload, unless it's missing such as while being
+	 * replaced, rather than migrating.
+	 *
+	 * @return false if there's nothing to read.
+	 */
+	boolean reread() throws IOException {
+		if (Files.notExists(config)) {
+			return false;
+		}
+		read();
+		return true;
+	}
+
+	/**
+	 * @return The directory the config is stored in.
+	 */
+	Path store() {
+		return store;
+	}
+
+	/**
+	 * @return The files the config is read from.
+	 */
+	List<Path> files() {
+		return List.of(config, secrets, users);
+	}
+
 	public void write() throws IOException {
 		// Write users to password hashes into each host section.
 		try (var secrets = new Ini.IniWriter(Utils.secretWriter(this.secrets));
@@ -118,11 +246,6 @@ public class Config {
 			// Preload the hosts section.
 			config.section("hosts");
 
-			// INI can't handle this, and this may appear in the middle of iteration.
-			var auth = hosts.get(null);
-			if (auth != null) {
-				auth.writeUsers(users);
-			}
 			for (var entry : hosts.entrySet()) {
 				var key = entry.getKey();
 				var value = entry.getValue();
@@ -130,15 +253,61 @@ public class Config {
 				secrets.entry(Objects.requireNonNullElse(key, "*"), Utils.ENCODER.encodeToString(value.secret));
 				// Write the path to each host.
 				config.entry(Objects.requireNonNullElse(key, "*"), value.path.toString());
-				// Write users for each host.
-				if (key != null) {
-					users.section(key);
-					value.writeUsers(users);
-				}
+			}
+			writeUsers(users);
+			server.write(config);
+			writeSection(config, "bandwidth", bandwidth);
+			writeSection(config, "weights", weights);
+			writeSection(config, "max_upload", maxUpload);
+			writeSection(config, "retention", retention);
+			writeSection(config, "hooks", hooks);
+			writeSection(config, "argon2", argon2);
+			for (var listener : listeners.values()) {
+				listener.write(config);
 			}
 		}
 	}
 
+	/**
+	 * Writes only the users, leaving the rest of the config as is.
+	 */
+	void writeUsers() throws IOException {
+		try (var users = new Ini.IniWriter(Utils.secretWriter(this.users))) {
+			writeUsers(users);
+		}
+	}
+
+	private void writeUsers(Ini.IniWriter users) throws IOException {
+		// INI can't handle this, and this may appear in the middle of iteration.
+		var auth = hosts.get(null);
+		if (auth != null) {
+			auth.writeUsers(users);
+		}
+		for (var entry : hosts.entrySet()) {
+			if (entry.getKey() != null) {
+				users.section(entry.getKey());
+				entry.getValue().writeUsers(users);
+			}
+		}
+		for (var entry : hosts.entrySet()) {
+			if (!entry.getValue().generations.isEmpty()) {
+				users.section(Host.generations(entry.getKey()));
+				entry.getValue().writeGenerations(users);
+			}
+		}
+	}
+
+	private static void writeSection(Ini.IniWriter ini, String section, Map<String, String> entries)
+			throws IOException {
+		if (entries.isEmpty()) {
+			return;
+		}
+		ini.section(section);
+		for (var entry : entries.entrySet()) {
+			ini.entry(entry.getKey(), entry.getValue());
+		}
+	}
+
 	public void importRaw(String domain, Host host) {
 		Objects.requireNonNull(host, "host");
 		hosts.put(domain, host);
@@ -187,7 +356,7 @@ public class Config {
 	 */
 	public Path location(String host) {
 		var conf = host(host);
-		return conf.path;
+		return conf == null ? null : conf.path;
 	}
 
 	public void createHost(String host, Path path) {
@@ -222,74 +391,84 @@ public class Config {
 		var passBuf = StandardCharsets.UTF_8.encode(passIn);
 		var passRaw = new byte[passBuf.limit() - passBuf.position()];
 		passBuf.get(passRaw);
-		var hash = Argon2.generate(passRaw, auth.secret);
+		var hash = Argon2.generate(passRaw, auth.secret, cost());
 		Arrays.fill(passIn.array(), '\u0000');
 		Arrays.fill(passBuf.array(), (byte) 0);
 		Arrays.fill(passRaw, (byte) 0);
 		auth.users.put(user, hash);
+		auth.renew(user);
 	}
 
-	private Host host(String host) {
-		var auth = hosts.get(host);
-		if (auth != null) {
-			return auth;
-		}
-		return hosts.get(null);
+	/**
+	 * @return The cost new password hashes are generated at.
+	 */
+	Argon2.Cost cost() {
+		var fallback = Argon2.Cost.DEFAULT;
+		var memory = argon2.get("memory");
+		var iterations = argon2.get("iterations");
+		var lanes = argon2.get("lanes");
+		return new Argon2.Cost(
+				memory == null ? fallback.memory() : (int) (Utils.parseSize(memory) / 1024),
+				iterations == null ? fallback.iterations() : Integer.parseUnsignedInt(iterations.strip()),
+				lanes == null ? fallback.lanes() : Integer.parseUnsignedInt(lanes.strip()));
 	}
 
-	public boolean authorized(String host, String user, byte[] password) {
-		var auth = host(host);
-		if (auth == null) {
-			return false;
-		}
-		var hash = auth.users.get(user);
-		if (hash == null) {
+	/**
+	 * @param cost The cost new password hashes are to be generated at.
+	 */
+	void cost(Argon2.Cost cost) {
+		argon2.put("memory", cost.memory() + "K");
+		argon2.put("iterations", Integer.toString(cost.iterations()));
+		argon2.put("lanes", Integer.toString(cost.lanes()));
+	}
+
+	/**
+	 * Calibrates the cost of new password hashes to this machine, keeping the
+	 * lanes as configured.
+	 * <p>
+	 * The cost is kept if only the iterations are within a quarter of it, as
+	 * timing is noisy and every change rehashes every user as they log in.
+	 *
+	 * @param target How long verifying may take.
+	 * @param memory How much memory each hash may use, in bytes.
+	 * @return true if the cost changed.
+	 */
+	boolean calibrate(Duration target, long memory) {
+		var previous = cost();
+		var cost = Argon2.calibrate(target, memory, previous.lanes());
+		if (cost.memory() == previous.memory()
+				&& Math.abs(cost.iterations() - previous.iterations()) * 4 <= previous.iterations()) {
+			logger.info("Calibrated Argon2 to {}, keeping {}", cost, previous);
 			return false;
 		}
-		return Passwd.verify(hash, password, auth.secret);
+		logger.info("Calibrated Argon2 to {}, was {}", cost, previous);
+		cost(cost);
+		return true;
 	}
 
-	public Sha256Hash authHashKey(String host, String user, byte[] password, byte[] nonce) {
-		var auth = host(host);
-		if (auth == null) {
-			return null;
-		}
-
-		var hash = auth.users.get(user);
-		if (hash == null) {
-			return null;
-		}
-
-		try {
-			final var key = new SecretKeySpec(auth.secret, "RAW");
-			final var mac = Mac.getInstance("HmacSHA256");
-			mac.init(key);
-			var a = host.getBytes(StandardCharsets.UTF_8);
-			var b = user.getBytes(StandardCharsets.UTF_8);
-			var c = hash.getBytes(StandardCharsets.UTF_8);
-			mac.update(password);
-			mac.update(a);
-			mac.update(b);
-			mac.update(c);
-			mac.update(nonce);
-			var d = mac.doFinal();
-			Arrays.clear(a);
-			Arrays.clear(b);
-			Arrays.clear(c);
-			return new Sha256Hash(d);
-		} catch (NoSuchAlgorithmException | InvalidKeyException e) {
-			throw new AssertionError(e);
+	/**
+	 * @param host The host domain for the maven.
+	 * @return The configuration for the domain, falling back to the global
+	 *         configuration if there's none specific to the domain.
+	 */
+	Host host(String host) {
+		var auth = hosts.get(host);
+		if (auth != null) {
+			return auth;
 		}
+		return hosts.get(null);
 	}
 
 	public int taint(String host, String user) {
 		int i = 0;
 		var auth = hosts.get(host);
 		if (auth != null && auth.users.remove(user) != null) {
+			auth.renew(user);
 			i++;
 		}
 		auth = hosts.get(null);
 		if (auth != null && auth.users.remove(user) != null) {
+			auth.renew(user);
 			i++;
 		}
 		return i;
@@ -299,11 +478,22 @@ public class Config {
 		Path path;
 		byte[] secret;
 		final Map<String, String> users;
-
-		Host(Path path, byte[] secret, Map<String, String> users) {
+		/**
+		 * How many times each user's password was changed or tainted, such that
+		 * tokens signed over it are revoked then, but not by a rehash. Kept after
+		 * the user is removed, such that a user added back doesn't revive tokens.
+		 */
+		final Map<String, Long> generations;
+
+		Host(Path path, byte[] secret, Map<String, String> users, Map<String, Long> generations) {
 			this.path = path;
 			this.secret = secret;
 			this.users = users;
+			this.generations = generations;
+		}
+
+		Host(Path path, byte[] secret, Map<String, String> users) {
+			this(path, secret, users, new HashMap<>());
 		}
 
 		Host(Path path) {
@@ -328,10 +518,64 @@ public class Config {
 			}
 		}
 
+		void writeGenerations(Ini.IniWriter ini) throws IOException {
+			for (var user : generations.entrySet()) {
+				ini.entry(user.getKey(), Long.toUnsignedString(user.getValue()));
+			}
+		}
+
+		/**
+		 * @param name The name of the host, null for the global configuration.
+		 * @return The section of {@code .users} the host's generations are in,
+		 *         never a host name as those can't have spaces.
+		 */
+		static String generations(String name) {
+			return "generations " + Objects.requireNonNullElse(name, "*");
+		}
+
+		/**
+		 * @return The user's generation, 0 until their password is first changed
+		 *         or tainted.
+		 */
+		long generation(String user) {
+			return generations.getOrDefault(user, 0L);
+		}
+
+		/**
+		 * Moves the user on to the next generation, revoking their tokens.
+		 */
+		void renew(String user) {
+			generations.merge(user, 1L, Long::sum);
+		}
+
 		public Path path() {
 			return path;
 		}
 
+		/**
+		 * @return The directory uploads are written to before being moved into place.
+		 *         Always on the same filesystem as {@link #path()}.
+		 */
+		public Path staging() {
+			return path.resolve(INTERNAL).resolve("staging");
+		}
+
+		/**
+		 * @return The directory deploy sessions are staged within until committed.
+		 *         Always on the same filesystem as {@link #path()}.
+		 */
+		public Path sessions() {
+			return path.resolve(INTERNAL).resolve("sessions");
+		}
+
+		/**
+		 * @return The content-addressed store deduplicated uploads are linked to.
+		 *         Always on the same filesystem as {@link #path()}.
+		 */
+		public Path blobs() {
+			return path.resolve(INTERNAL).resolve("blobs");
+		}
+
 		public byte[] secret() {
 			return secret;
 		}
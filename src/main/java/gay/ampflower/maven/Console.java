@@ -24,6 +24,7 @@ import java.io.InputStreamReader;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.Objects;
 
 import static com.mojang.brigadier.arguments.StringArgumentType.*;
@@ -53,6 +54,8 @@ public class Console {
 		registerHelpCommand(dispatcher);
 		registerUserCommand(dispatcher);
 		registerHostCommand(dispatcher);
+		registerArgon2Command(dispatcher);
+		registerTokenCommand(dispatcher);
 		console.printf("""
 				maven.sock management console
 
@@ -235,6 +238,57 @@ public class Console {
 				})));
 	}
 
+	private static void registerArgon2Command(CommandDispatcher<Console> dispatcher) {
+		dispatcher.register(literal("argon2").executes(ctx -> {
+			logger.info("New hashes are generated at {}", ctx.getSource().config.cost());
+			return Command.SINGLE_SUCCESS;
+		}).then(literal("calibrate").executes(ctx -> {
+			var tuning = ctx.getSource().config.server;
+			return calibrate(ctx, tuning.argon2Target, tuning.argon2Memory);
+		}).then(argument("target", string()).executes(ctx -> {
+			var target = Utils.parseDuration(getString(ctx, "target"));
+			return calibrate(ctx, target, ctx.getSource().config.server.argon2Memory);
+		}).then(argument("memory", string()).executes(ctx -> {
+			var target = Utils.parseDuration(getString(ctx, "target"));
+			return calibrate(ctx, target, Utils.parseSize(getString(ctx, "memory")));
+		})))));
+	}
+
+	private static int calibrate(CommandContext<Console> ctx, Duration target, long memory) {
+		logger.info("Calibrating Argon2 for {} with up to {} bytes...", target, memory);
+		ctx.getSource().config.calibrate(target, memory);
+		return Command.SINGLE_SUCCESS;
+	}
+
+	private static void registerTokenCommand(CommandDispatcher<Console> dispatcher) {
+		dispatcher.register(literal("token").then(literal("mint").then(argument("user", string())
+				.executes(ctx -> mint(ctx, ctx.getSource().config.server.tokenTtl, null))
+				.then(argument("ttl", string())
+						.executes(ctx -> mint(ctx, Utils.parseDuration(getString(ctx, "ttl")), null))
+						.then(argument("path", greedyString()).executes(ctx -> mint(ctx,
+								Utils.parseDuration(getString(ctx, "ttl")), getString(ctx, "path"))))))));
+	}
+
+	/**
+	 * Mints a token for the user of the current host, printed rather than logged.
+	 */
+	private static int mint(CommandContext<Console> ctx, Duration ttl, String path) {
+		var source = ctx.getSource();
+		var user = getString(ctx, "user");
+		var host = source.config.hosts.get(source.host);
+		if (host == null) {
+			logger.info("No such host.");
+			return 0;
+		}
+		var token = Tokens.mint(source.host, host, user, Tokens.prefix(path), ttl);
+		if (token == null) {
+			logger.info("No such user.");
+			return 0;
+		}
+		source.console.printf("%s%n", token);
+		return Command.SINGLE_SUCCESS;
+	}
+
 	/**
 	 * Extracts the host from the command context.
 	 *
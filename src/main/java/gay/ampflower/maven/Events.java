@@ -0,0 +1,338 @@
+/* Copyright 2023 Ampflower
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package gay.ampflower.maven;
+
+import gay.ampflower.maven.hook.UploadEvent;
+import gay.ampflower.maven.hook.UploadHook;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers {@link UploadEvent}s to every {@link UploadHook} on a pool of
+ * background threads, such that hooks never delay responding to uploads.
+ * <p>
+ * Events are held in a bounded queue. Once full, further events are spilled
+ * to disk rather than blocking the upload or being dropped, and are
+ * delivered between queued events, including after a restart.
+ *
+ * @author Ampflower
+ * @since 0.1.0
+ */
+final class Events {
+	private static final Logger logger = LoggerFactory.getLogger(Events.class);
+
+	private final List<UploadHook> hooks;
+	private final BlockingQueue<UploadEvent> queue;
+	private final int workers;
+	private final Path spill;
+	private final Path draining;
+	private final AtomicBoolean drainLock = new AtomicBoolean();
+	/**
+	 * Where draining is up to, guarded by {@link #drainLock}.
+	 */
+	private BufferedReader drainer;
+	private final AtomicLong spilled = new AtomicLong();
+	private volatile boolean pending;
+
+	/**
+	 * @param hooks    The hooks to deliver to.
+	 * @param capacity How many events may wait in memory.
+	 * @param workers  How many threads deliver events.
+	 * @param spill    Where to spill events to once the queue is full.
+	 */
+	Events(List<UploadHook> hooks, int capacity, int workers, Path spill) {
+		this.hooks = List.copyOf(hooks);
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.workers = workers;
+		this.spill = spill;
+		this.draining = spill.resolveSibling(spill.getFileName() + ".draining");
+	}
+
+	/**
+	 * Starts delivering, including anything spilled before the last shutdown.
+	 */
+	void start() {
+		seal();
+		pending = Files.exists(spill) || Files.exists(draining);
+		for (int i = 0; i < workers; i++) {
+			var thread = new Thread(this::work, "events " + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Queues an event without ever blocking, spilling it to disk if the queue is
+	 * full.
+	 */
+	void emit(UploadEvent event) {
+		if (!queue.offer(event)) {
+			spill(event);
+		}
+	}
+
+	/**
+	 * Spills every event still waiting in memory, such that they're delivered
+	 * after a restart rather than lost.
+	 */
+	void stop() {
+		var remaining = new ArrayList<UploadEvent>();
+		queue.drainTo(remaining);
+		if (remaining.isEmpty()) {
+			return;
+		}
+		var lines = new StringBuilder();
+		for (var event : remaining) {
+			lines.append(encode(event)).append('\n');
+		}
+		try {
+			synchronized (this) {
+				Files.writeString(spill, lines, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			}
+			logger.info("Spilled {} undelivered events to {}", remaining.size(), spill);
+		} catch (IOException ioe) {
+			logger.error("Failed to spill, dropped {} events", remaining.size(), ioe);
+		}
+	}
+
+	/**
+	 * @return How many events are waiting in memory.
+	 */
+	int queued() {
+		return queue.size();
+	}
+
+	private void spill(UploadEvent event) {
+		var line = encode(event) + '\n';
+		try {
+			synchronized (this) {
+				Files.writeString(spill, line, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+				pending = true;
+			}
+			// Logged sparingly, as this is a symptom of a slow hook.
+			if (spilled.getAndIncrement() % 1000 == 0) {
+				logger.warn("Event queue full, spilled {} events to {}", spilled.get(), spill);
+			}
+		} catch (IOException ioe) {
+			logger.error("Event queue full and failed to spill, dropped {}", event, ioe);
+		}
+	}
+
+	private void work() {
+		boolean spilled = false;
+		while (true) {
+			UploadEvent event;
+			try {
+				// Spilled events are delivered between queued events rather than
+				// only once the queue idles, such that a busy queue can't starve
+				// them.
+				event = spilled ? queue.poll() : queue.poll(1, TimeUnit.SECONDS);
+			} catch (InterruptedException ie) {
+				return;
+			}
+			if (event != null) {
+				deliver(event);
+			}
+			spilled = pending && drain();
+		}
+	}
+
+	/**
+	 * Delivers the next spilled event, if no other worker is.
+	 *
+	 * @return true if spilled events may remain.
+	 */
+	private boolean drain() {
+		if (!drainLock.compareAndSet(false, true)) {
+			return false;
+		}
+		try {
+			if (drainer == null) {
+				synchronized (this) {
+					// A previous drain may have been interrupted by a restart.
+					if (Files.notExists(draining)) {
+						if (Files.notExists(spill)) {
+							pending = false;
+							return false;
+						}
+						Files.move(spill, draining, StandardCopyOption.ATOMIC_MOVE);
+					}
+				}
+				drainer = Files.newBufferedReader(draining, StandardCharsets.UTF_8);
+			}
+			var line = readLine(drainer);
+			if (line != null) {
+				if (!line.isBlank()) {
+					redeliver(line);
+				}
+				return true;
+			}
+			drainer.close();
+			drainer = null;
+			Files.delete(draining);
+			logger.info("Delivered spilled events from {}", spill);
+			// More may have been spilled meanwhile.
+			return true;
+		} catch (IOException e) {
+			logger.error("Failed to deliver spilled events from {}", draining, e);
+			closeDrainer();
+			// Retried on the next spill or restart rather than spinning.
+			pending = false;
+			return false;
+		} finally {
+			drainLock.set(false);
+		}
+	}
+
+	private void redeliver(String line) {
+		final UploadEvent event;
+		try {
+			event = decode(line);
+		} catch (RuntimeException e) {
+			// Skipped rather than failing the rest of the events with it.
+			logger.warn("Skipped malformed spilled event {}", line, e);
+			return;
+		}
+		deliver(event);
+	}
+
+	private void closeDrainer() {
+		if (drainer == null) {
+			return;
+		}
+		try {
+			drainer.close();
+		} catch (IOException ioe) {
+			logger.warn("Failed to close {}", draining, ioe);
+		}
+		drainer = null;
+	}
+
+	/**
+	 * Ends the spill with a newline if it was torn by a crash mid-write, such
+	 * that events spilled from now on aren't joined onto it.
+	 */
+	private void seal() {
+		try (var channel = FileChannel.open(spill, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			final long size = channel.size();
+			var last = ByteBuffer.allocate(1);
+			if (size > 0 && channel.read(last, size - 1) == 1 && last.get(0) != '\n') {
+				channel.write(ByteBuffer.wrap(new byte[] { '\n' }), size);
+				logger.warn("Sealed torn event at the end of {}", spill);
+			}
+		} catch (NoSuchFileException ignored) {
+			// Nothing was spilled.
+		} catch (IOException ioe) {
+			logger.error("Failed to seal {}", spill, ioe);
+		}
+	}
+
+	/**
+	 * @return The next line, or null at the end, including if the last line
+	 *         isn't terminated, as it was torn by a crash mid-write.
+	 */
+	private static String readLine(Reader reader) throws IOException {
+		var line = new StringBuilder();
+		for (int c; (c = reader.read()) >= 0;) {
+			if (c == '\n') {
+				return line.toString();
+			}
+			line.append((char) c);
+		}
+		if (!line.isEmpty()) {
+			logger.warn("Skipped torn spilled event {}", line);
+		}
+		return null;
+	}
+
+	private void deliver(UploadEvent event) {
+		for (var hook : hooks) {
+			try {
+				hook.accept(event);
+			} catch (Exception e) {
+				logger.warn("Hook {} failed on {}", hook, event, e);
+			}
+		}
+	}
+
+	/**
+	 * Encodes an event as a single tab separated line.
+	 */
+	static String encode(UploadEvent event) {
+		var builder = new StringBuilder();
+		builder.append(event.time().toEpochMilli()).append('\t');
+		builder.append(escape(event.host())).append('\t');
+		builder.append(escape(event.user())).append('\t');
+		builder.append(escape(event.path())).append('\t');
+		builder.append(event.size());
+		for (var entry : event.digests().entrySet()) {
+			builder.append('\t').append(escape(entry.getKey())).append('=').append(escape(entry.getValue()));
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * @throws IllegalArgumentException If the line is malformed.
+	 */
+	static UploadEvent decode(String line) {
+		var fields = line.split("\t", -1);
+		if (fields.length < 5) {
+			throw new IllegalArgumentException("Malformed event: " + line);
+		}
+		var digests = new LinkedHashMap<String, String>();
+		for (int i = 5; i < fields.length; i++) {
+			int equals = fields[i].indexOf('=');
+			if (equals < 0) {
+				throw new IllegalArgumentException("Malformed digest: " + line);
+			}
+			digests.put(unescape(fields[i].substring(0, equals)), unescape(fields[i].substring(equals + 1)));
+		}
+		return new UploadEvent(Instant.ofEpochMilli(Long.parseLong(fields[0])), unescape(fields[1]),
+				unescape(fields[2]), unescape(fields[3]), Long.parseLong(fields[4]), digests);
+	}
+
+	private static String escape(String value) {
+		// Null is written as nothing, an empty string as a lone percent, which
+		// encoding never otherwise produces.
+		if (value == null) {
+			return "";
+		}
+		return value.isEmpty() ? "%" : URLEncoder.encode(value, StandardCharsets.UTF_8);
+	}
+
+	private static String unescape(String value) {
+		if (value.isEmpty()) {
+			return null;
+		}
+		return value.equals("%") ? "" : URLDecoder.decode(value, StandardCharsets.UTF_8);
+	}
+}
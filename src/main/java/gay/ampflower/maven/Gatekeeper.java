@@ -0,0 +1,140 @@
+/* Copyright 2023 Ampflower
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package gay.ampflower.maven;
+
+import gay.ampflower.maven.concurrent.Limiter;
+import jakarta.servlet.http.HttpServletRequest;
+import org.eclipse.jetty.server.Request;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shields Argon2 from password guessing, by rate limiting clients by their
+ * address, their forwarded address and the user they log in as, and
+ * temporarily banning their addresses.
+ * <p>
+ * Users are never banned, as anyone knowing a user's name could otherwise
+ * lock them out by guessing wrong.
+ * <p>
+ * Only logins that would run Argon2 are limited, such that deploys reusing a
+ * remembered login are never slowed down.
+ *
+ * @author Ampflower
+ * @since 0.1.0
+ */
+final class Gatekeeper {
+	private static final Logger logger = LoggerFactory.getLogger(Gatekeeper.class);
+
+	private final Limiter addresses;
+	private final Limiter forwarded;
+	private final Limiter users;
+	private long reported;
+
+	Gatekeeper(Tuning tuning) {
+		this.addresses = limiter(tuning);
+		this.forwarded = limiter(tuning);
+		// Paced only, never banned.
+		this.users = new Limiter(tuning.limiterStripes, TimeUnit.MINUTES.toNanos(1) / tuning.authRate,
+				tuning.authBurst, Integer.MAX_VALUE, tuning.banTime.toNanos(), tuning.banMax.toNanos());
+		Utils.scheduler.scheduleWithFixedDelay(this::report, 1, 1, TimeUnit.MINUTES);
+	}
+
+	private static Limiter limiter(Tuning tuning) {
+		return new Limiter(tuning.limiterStripes, TimeUnit.MINUTES.toNanos(1) / tuning.authRate, tuning.authBurst,
+				tuning.banAfter, tuning.banTime.toNanos(), tuning.banMax.toNanos());
+	}
+
+	/**
+	 * Attempts a login that would run Argon2.
+	 *
+	 * @return 0 if the login may go ahead, else how many nanoseconds until the
+	 *         client may try again.
+	 */
+	long admit(Client client) {
+		long wait = 0;
+		if (client.address != null) {
+			wait = addresses.acquire(client.address);
+		}
+		if (wait == 0 && client.forwarded != null) {
+			wait = forwarded.acquire(client.forwarded);
+		}
+		if (wait == 0) {
+			wait = users.acquire(client.user);
+		}
+		return wait;
+	}
+
+	void failure(Client client) {
+		if (client.address != null) {
+			addresses.failure(client.address);
+		}
+		if (client.forwarded != null) {
+			forwarded.failure(client.forwarded);
+		}
+	}
+
+	void success(Client client) {
+		if (client.address != null) {
+			addresses.success(client.address);
+		}
+		if (client.forwarded != null) {
+			forwarded.success(client.forwarded);
+		}
+	}
+
+	/**
+	 * Logs the counters if anything was turned away since last time.
+	 */
+	private void report() {
+		long turned = addresses.limited() + addresses.refused() + forwarded.limited() + forwarded.refused()
+				+ users.limited() + users.refused();
+		if (turned != reported) {
+			reported = turned;
+			logger.info("Logins by address: {}, forwarded: {}, user: {}", addresses, forwarded, users);
+		}
+	}
+
+	/**
+	 * Who is logging in.
+	 *
+	 * @param address   The address of the connection, or null if it's the proxy's
+	 *                  own, such as over the unix socket or loopback.
+	 * @param forwarded The client's address as forwarded by the proxy, if any.
+	 * @param user      The user logging in as.
+	 */
+	record Client(String address, String forwarded, String user) {
+		/**
+		 * @param header The header the proxy puts the client's address in, or null
+		 *               if there's no proxy to trust.
+		 */
+		static Client of(Request baseRequest, HttpServletRequest request, String header, String user) {
+			var remote = baseRequest.getRemoteInetSocketAddress();
+			String address = null;
+			if (remote != null && remote.getAddress() != null && !remote.getAddress().isLoopbackAddress()) {
+				address = remote.getAddress().getHostAddress();
+			}
+			return new Client(address, forwarded(request, header), user);
+		}
+
+		/**
+		 * @return The address in the trusted header, the last one if listed as
+		 *         by X-Forwarded-For, as anything before it is up to the client.
+		 */
+		private static String forwarded(HttpServletRequest request, String header) {
+			if (header == null) {
+				return null;
+			}
+			var forwarded = request.getHeader(header);
+			if (forwarded == null || forwarded.isBlank()) {
+				return null;
+			}
+			return forwarded.substring(forwarded.lastIndexOf(',') + 1).strip();
+		}
+	}
+}
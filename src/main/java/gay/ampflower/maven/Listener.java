@@ -0,0 +1,182 @@
+/* Copyright 2023 Ampflower
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package gay.ampflower.maven;
+
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.server.AbstractConnector;
+import org.eclipse.jetty.server.ConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.unixdomain.server.UnixDomainServerConnector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A socket the server listens on, either the main {@code socket} or one of
+ * the {@code [listener.<name>]} sections of {@code config.ini}.
+ *
+ * @author Ampflower
+ * @since 0.1.0
+ */
+final class Listener {
+	private static final Logger logger = LoggerFactory.getLogger(Listener.class);
+	static final String SECTION = "listener.";
+
+	/**
+	 * Entries as read, such that they are written back as the user wrote them.
+	 */
+	private final Map<String, String> raw = new LinkedHashMap<>();
+
+	final String name;
+	Path unix;
+	String host;
+	int port = -1;
+	/**
+	 * Whether to accept HTTP/2 without TLS alongside HTTP/1.1, such that a proxy
+	 * may multiplex uploads over fewer connections.
+	 */
+	boolean h2c;
+	/**
+	 * Whether the socket is inherited already bound through standard input, such
+	 * as by systemd's {@code StandardInput=socket}, falling back to binding it if
+	 * there's none.
+	 */
+	boolean inherit;
+	int acceptors = -1;
+	int selectors = -1;
+	Duration idleTimeout;
+
+	Listener(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @return The main socket, tuned by the {@code [server]} section.
+	 */
+	static Listener primary(Path socket, Tuning tuning) {
+		var listener = new Listener("main");
+		listener.unix = socket;
+		listener.h2c = tuning.h2c;
+		listener.inherit = tuning.inherit;
+		listener.acceptors = tuning.acceptors;
+		listener.selectors = tuning.selectors;
+		listener.idleTimeout = tuning.idleTimeout;
+		return listener;
+	}
+
+	/**
+	 * Reads an entry from the listener's section.
+	 *
+	 * @throws IllegalArgumentException If the value is malformed.
+	 */
+	void set(String key, String value) {
+		var trimmed = value.strip();
+		switch (key) {
+			case "unix" -> unix = Path.of(trimmed);
+			case "tcp" -> {
+				int colon = trimmed.lastIndexOf(':');
+				if (colon < 0) {
+					throw new IllegalArgumentException("Expected host:port for " + name + ", got " + value);
+				}
+				host = trimmed.substring(0, colon);
+				port = Integer.parseInt(trimmed.substring(colon + 1));
+			}
+			case "h2c" -> h2c = Boolean.parseBoolean(trimmed);
+			case "inherit" -> inherit = Boolean.parseBoolean(trimmed);
+			case "acceptors" -> acceptors = Integer.parseInt(trimmed);
+			case "selectors" -> selectors = Integer.parseInt(trimmed);
+			case "idle_timeout" -> idleTimeout = Utils.parseDuration(trimmed);
+			default -> {
+				logger.warn("Unknown entry {}={} from listener {}", key, value, name);
+				return;
+			}
+		}
+		raw.put(key, value);
+	}
+
+	void write(Ini.IniWriter ini) throws IOException {
+		ini.section(SECTION + name);
+		for (var entry : raw.entrySet()) {
+			ini.entry(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Creates the connector for this listener.
+	 *
+	 * @param server        The server to attach to.
+	 * @param pool          The buffer pool shared by every connector, or null for
+	 *                      Jetty's default.
+	 * @param configuration The HTTP configuration shared by every connector.
+	 * @throws IllegalStateException If neither a unix socket nor a TCP port is
+	 *                               given.
+	 */
+	AbstractConnector connector(Server server, ByteBufferPool pool, HttpConfiguration configuration) {
+		ConnectionFactory[] factories = h2c
+				? new ConnectionFactory[] { new HttpConnectionFactory(configuration),
+						new HTTP2CServerConnectionFactory(configuration) }
+				: new ConnectionFactory[] { new HttpConnectionFactory(configuration) };
+		AbstractConnector connector;
+		if (unix != null) {
+			var unixConnector = new UnixDomainServerConnector(server, null, null, pool, acceptors, selectors,
+					factories);
+			unixConnector.setUnixDomainPath(unix);
+			unixConnector.setInheritChannel(inherit);
+			connector = unixConnector;
+		} else if (port >= 0) {
+			if (!loopback(host)) {
+				logger.warn("Listener {} is reachable beyond loopback at {}:{}, credentials are sent in the clear",
+						name, host, port);
+			}
+			var tcpConnector = new ServerConnector(server, null, null, pool, acceptors, selectors, factories);
+			tcpConnector.setHost(host);
+			tcpConnector.setPort(port);
+			tcpConnector.setInheritChannel(inherit);
+			connector = tcpConnector;
+		} else {
+			throw new IllegalStateException("Listener " + name + " has neither unix nor tcp set");
+		}
+		connector.setName(name);
+		if (idleTimeout != null) {
+			connector.setIdleTimeout(idleTimeout.toMillis());
+		}
+		return connector;
+	}
+
+	/**
+	 * @return true if the server binds the unix socket itself, and so should
+	 *         remove it once stopped.
+	 */
+	boolean ownsSocket() {
+		return unix != null && !inherit;
+	}
+
+	private static boolean loopback(String host) {
+		try {
+			return host != null && !host.isEmpty() && InetAddress.getByName(host).isLoopbackAddress();
+		} catch (UnknownHostException uhe) {
+			return false;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return name + '=' + (unix != null ? unix : host + ':' + port) + (h2c ? " (h2c)" : "")
+				+ (inherit ? " (inherited)" : "");
+	}
+}
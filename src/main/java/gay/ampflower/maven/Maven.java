@@ -6,23 +6,38 @@
 
 package gay.ampflower.maven;// Created 2022-02-02T21:46:08
 
+import gay.ampflower.maven.concurrent.FairScheduler;
+import gay.ampflower.maven.concurrent.Throttle;
+import gay.ampflower.maven.hook.UploadEvent;
+import gay.ampflower.maven.hook.UploadHook;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.io.ArrayByteBufferPool;
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.io.LogarithmicArrayByteBufferPool;
+import org.eclipse.jetty.io.MappedByteBufferPool;
+import org.eclipse.jetty.server.HttpConfiguration;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.handler.AbstractHandler;
-import org.eclipse.jetty.unixdomain.server.UnixDomainServerConnector;
+import org.eclipse.jetty.server.handler.StatisticsHandler;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
-import static gay.ampflower.maven.Utils.getStrongRandom;
-
 /**
  * Tiny maven upload backend over a unix socket.
  * <p>
@@ -33,34 +48,98 @@ import static gay.ampflower.maven.Utils.getStrongRandom;
  **/
 public class Maven extends AbstractHandler {
 	private static final Logger logger = LoggerFactory.getLogger(Maven.class);
-	private static final int nonceLength = 64;
 	/**
-	 * Nonce for current session.
+	 * Largest maven-metadata.xml accepted, as it's parsed in memory.
+	 */
+	private static final int MAX_METADATA = 1024 * 1024;
+	/**
+	 * Names the deploy session an upload belongs to.
+	 */
+	private static final String SESSION_HEADER = "X-Deploy-Session";
+	/**
+	 * Alternative to {@link #SESSION_HEADER}, followed by the session's name.
+	 */
+	private static final String SESSION_PREFIX = "/.session/";
+	/**
+	 * Mints tokens by POST and revokes them by DELETE, see {@link Tokens}.
+	 */
+	private static final String TOKEN_PATH = "/.token";
+	/**
+	 * Carries a login verified by Argon2 back into {@link #handle}.
+	 */
+	private static final String LOGIN_ATTRIBUTE = Login.class.getName();
+	/**
+	 * Publishes the parts of the config that may be reloaded.
+	 */
+	private final Reloader config;
+	/**
+	 * The {@code [server]} section, fixed until restarted.
+	 */
+	private final Tuning tuning;
+	private final Map<Path, Repository> repositories = new ConcurrentHashMap<>();
+	/**
+	 * Schedules large uploads fairly between hosts and users, if enabled.
+	 */
+	private final FairScheduler scheduler;
+	private final Map<String, Throttle> throttles = new ConcurrentHashMap<>();
+	/**
+	 * Rate limits logins that would run Argon2.
 	 */
-	private static final byte[] nonce = new byte[nonceLength];
+	private final Gatekeeper gatekeeper;
 	/**
-	 * Deny-cache to help prevent DOS by same invalid user & password. Argon2
-	 * compute is after all, rather expensive.
+	 * Delivers uploads to hooks, if any are configured.
 	 */
-	private final int[] deniedEntries = new int[64];
-	private final Config config;
+	private final Events events;
+
+	Maven(Config config, Reloader reloader) {
+		this.config = reloader;
+		this.tuning = config.server;
+		this.scheduler = tuning.uploadSlots > 0
+				? new FairScheduler(tuning.uploadSlots, tuning.queueDepth, tuning.queueDepthPerFlow)
+				: null;
+		Passwd.configure(tuning);
+		this.gatekeeper = new Gatekeeper(tuning);
+		// Throttles are recreated on demand with the reloaded bandwidth.
+		reloader.onReload(throttles::clear);
+		// Opened up front, such that indexes are built before the first upload.
+		openRepositories();
+		reloader.onReload(this::openRepositories);
+		var hooks = new ArrayList<UploadHook>();
+		ServiceLoader.load(UploadHook.class).forEach(hooks::add);
+		for (var hook : config.hooks.entrySet()) {
+			hooks.add(new CommandHook(hook.getKey(), hook.getValue(), tuning.hookTimeout));
+		}
+		if (hooks.isEmpty()) {
+			this.events = null;
+		} else {
+			logger.info("Delivering uploads to hooks {}", hooks);
+			this.events = new Events(hooks, tuning.eventQueue, tuning.eventWorkers, tuning.eventSpill);
+			this.events.start();
+		}
+	}
 
-	Maven(Config config) {
-		this.config = config;
+	@Override
+	protected void doStop() throws Exception {
+		if (events != null) {
+			events.stop();
+		}
+		for (var repository : repositories.values()) {
+			repository.close();
+		}
+		repositories.clear();
+		super.doStop();
 	}
 
 	/**
 	 * Opens the management console if , else boots straight into Jetty.
 	 */
 	public static void main(String[] args) throws Exception {
-		// Initialise the runtime nonce for use with hashing data to obscure the
-		// original data in a way where it's
-		// difficult to recover.
-		getStrongRandom().nextBytes(nonce);
-
-		// Renews the nonce hourly. Yes, this operation is not atomic, although frankly,
-		// there's no reason for it to be.
-		Utils.scheduler.scheduleWithFixedDelay(() -> getStrongRandom().nextBytes(nonce), 1, 1, TimeUnit.HOURS);
+		// Loads the classes a server would, for recording into a class data sharing
+		// archive. See the cdsArchive task.
+		if (Utils.contains(args, "--train")) {
+			Warmup.train(Files.createTempDirectory("maven.sock"));
+			return;
+		}
 
 		logger.info("Reading config...");
 		var config = new Config(Path.of("."));
@@ -80,19 +159,114 @@ public class Maven extends AbstractHandler {
 
 		// Ensure that the maven folder is created.
 		config.init();
+		// Nothing is uploading yet, so anything left in staging was abandoned.
+		config.sweepStaging();
 
-		var server = new Server();
+		var tuning = config.server;
+		// Users are rehashed at the new cost as they next log in.
+		if (tuning.argon2Calibrate && config.calibrate(tuning.argon2Target, tuning.argon2Memory)) {
+			config.write();
+		}
+		if (tuning.warmup > 0) {
+			Warmup.run(tuning.warmup);
+			try {
+				Warmup.serve(Files.createTempDirectory("maven.sock"));
+			} catch (Exception e) {
+				logger.warn("Failed to warm up the handler", e);
+			}
+		}
+		var server = new Server(threadPool(tuning));
+		var listeners = new ArrayList<Listener>();
+		listeners.add(Listener.primary(config.socket, tuning));
+		listeners.addAll(config.listeners.values());
+		if (listeners.stream().filter(listener -> listener.inherit).count() > 1) {
+			logger.warn("Only one socket can be inherited, the rest will be bound instead");
+		}
 		{
-			var connector = new UnixDomainServerConnector(server);
-			connector.setUnixDomainPath(config.socket);
-			server.addConnector(connector);
+			// Shared such that buffers freed by one connector are reused by the rest.
+			var pool = bufferPool(tuning);
+			var http = new HttpConfiguration();
+			for (var listener : listeners) {
+				logger.info("Listening on {}", listener);
+				server.addConnector(listener.connector(server, pool, http));
+			}
 		}
 
-		server.setHandler(new Maven(config));
+		var reloader = new Reloader(config);
+		// Tracks requests in flight, such that stopping waits for them to finish.
+		var statistics = new StatisticsHandler();
+		statistics.setHandler(new Maven(config, reloader));
+		server.setHandler(statistics);
+		server.setStopTimeout(tuning.drainTimeout.toMillis());
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> drain(server, config), "drain"));
 
 		server.start();
+		reloader.start(tuning.watchConfig);
 
-		config.socket.toFile().deleteOnExit();
+		// Inherited sockets belong to whoever bound them, such as systemd.
+		for (var listener : listeners) {
+			if (listener.ownsSocket()) {
+				listener.unix.toFile().deleteOnExit();
+			}
+		}
+	}
+
+	/**
+	 * Stops accepting on SIGTERM, then waits for requests in flight up to the
+	 * drain timeout before removing whatever they left in staging.
+	 */
+	private static void drain(Server server, Config config) {
+		logger.info("Draining...");
+		try {
+			server.stop();
+		} catch (Exception e) {
+			logger.warn("Failed to drain gracefully", e);
+		}
+		try {
+			config.sweepStaging();
+		} catch (IOException ioe) {
+			logger.warn("Failed to clean up staging", ioe);
+		}
+		logger.info("Stopped.");
+	}
+
+	/**
+	 * Creates the thread pool Jetty will run on.
+	 *
+	 * @param tuning The {@code [server]} section of the config.
+	 */
+	private static ThreadPool threadPool(Tuning tuning) {
+		return switch (tuning.pool) {
+			case QUEUED -> {
+				var pool = new QueuedThreadPool();
+				pool.setName("jetty");
+				if (tuning.maxThreads > 0) {
+					pool.setMaxThreads(tuning.maxThreads);
+				}
+				if (tuning.minThreads > 0) {
+					pool.setMinThreads(tuning.minThreads);
+				}
+				yield pool;
+			}
+			case VIRTUAL -> new VirtualThreadPool("jetty-virtual-");
+		};
+	}
+
+	/**
+	 * Creates the buffer pool shared by every connector.
+	 *
+	 * @param tuning The {@code [server]} section of the config.
+	 * @return The configured pool, or null for Jetty's default.
+	 */
+	private static ByteBufferPool bufferPool(Tuning tuning) {
+		if (tuning.bufferPool == null) {
+			return null;
+		}
+		return switch (tuning.bufferPool) {
+			case ARRAY -> new ArrayByteBufferPool();
+			case LOGARITHMIC -> new LogarithmicArrayByteBufferPool();
+			case MAPPED -> new MappedByteBufferPool();
+		};
 	}
 
 	/**
@@ -109,28 +283,144 @@ public class Maven extends AbstractHandler {
 	public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
 			throws IOException {
 		var host = request.getHeader("Host");
-		var maven = config.location(host);
-		var user = Passwd.user(request.getHeader("Authorization"));
+		// Set once resumed after Argon2 verified the login, see #authenticate.
+		var login = (Login) request.getAttribute(LOGIN_ATTRIBUTE);
+		// Read once, such that a reload never changes the config midway through.
+		var snapshot = login == null ? config.get() : login.snapshot();
+		var hostConfig = snapshot.host(host);
+		var maven = hostConfig == null ? null : hostConfig.path();
+		var authorization = request.getHeader("Authorization");
+		// Tokens are cheap to verify, and so never leave the thread.
+		var token = login == null && authorization != null && authorization.startsWith("Bearer ")
+				? Tokens.verify(snapshot, host, authorization.substring(7).strip())
+				: null;
+		Passwd.User user;
+		if (login != null) {
+			user = login.user();
+		} else if (token != null) {
+			user = new Passwd.User(token.user(), new byte[0]);
+		} else {
+			user = Passwd.user(authorization);
+		}
 
-		logger.info("request: {} {}@{}{} from {}:{} ({}), real: {}, cf: {} / {}, agent: {}", request.getMethod(), user,
-				host, target, request.getRemoteAddr(), request.getRemotePort(), request.getRemoteHost(),
-				Utils.toString(request.getHeaders("X-Fowarded-For")), request.getHeader("CF-Connecting-IP"),
-				request.getHeader("True-Client-IP"), request.getHeader("User-Agent"));
+		// Deploy sessions are named by either a header or a path prefix, the latter
+		// for clients that can't set headers.
+		var sessionId = request.getHeader(SESSION_HEADER);
+		if (sessionId == null && target.startsWith(SESSION_PREFIX)) {
+			int end = target.indexOf('/', SESSION_PREFIX.length());
+			sessionId = target.substring(SESSION_PREFIX.length(), end < 0 ? target.length() : end);
+			target = end < 0 ? "/" : target.substring(end);
+		}
 
-		// CF-Connecting-IP and X-Forwarded-For :blobfox_3c:
-		if (!checkPreconditions(user, baseRequest, request, response)) {
-			logger.info("invalid: {} {}@{}{} from {}:{} ({})", request.getMethod(), user, host, target,
-					request.getRemoteAddr(), request.getRemotePort(), request.getRemoteHost());
-			user.close();
+		if (login == null) {
+			logger.info("request: {} {}@{}{} from {}:{} ({}), real: {}, cf: {} / {}, agent: {}", request.getMethod(),
+					user, host, target, request.getRemoteAddr(), request.getRemotePort(), request.getRemoteHost(),
+					Utils.toString(request.getHeaders("X-Forwarded-For")), request.getHeader("CF-Connecting-IP"),
+					request.getHeader("True-Client-IP"), request.getHeader("User-Agent"));
+
+			if (!checkPreconditions(snapshot, user, maven, sessionId != null || TOKEN_PATH.equals(target), baseRequest,
+					request, response)) {
+				logger.info("invalid: {} {}@{}{} from {}:{} ({})", request.getMethod(), user, host, target,
+						request.getRemoteAddr(), request.getRemotePort(), request.getRemoteHost());
+				if (user != null) {
+					user.close();
+				}
+				return;
+			}
+
+			if (token != null) {
+				if (!checkToken(token, target, request, response)) {
+					logger.info("invalid: {} {}@{}{} from {}:{} ({}), {}", request.getMethod(), user, host, target,
+							request.getRemoteAddr(), request.getRemotePort(), request.getRemoteHost(), token);
+					return;
+				}
+			} else {
+				login = authenticate(snapshot, user, baseRequest, request);
+				if (login == null) {
+					// Handled again once verified.
+					return;
+				}
+			}
+		} else {
+			baseRequest.setHandled(true);
+		}
+
+		if (login != null && !checkLogin(login, response)) {
+			logger.info("invalid: {} {}@{}{} from {}:{} ({}), {}", request.getMethod(), user, host, target,
+					request.getRemoteAddr(), request.getRemotePort(), request.getRemoteHost(), login.result());
 			return;
 		}
 
 		logger.info("authenticated: {} {}@{}{} from {}:{} ({})", request.getMethod(), user, host, target,
 				request.getRemoteAddr(), request.getRemotePort(), request.getRemoteHost());
 
+		if (sessionId == null && TOKEN_PATH.equals(target)) {
+			token(snapshot, host, user, token, request, response);
+			return;
+		}
+
+		if (target.startsWith(Config.INTERNAL, 1) && (target.length() == Config.INTERNAL.length() + 1
+				|| target.charAt(Config.INTERNAL.length() + 1) == '/')) {
+			response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+			response.getWriter().println("Reserved for the server.");
+
+			logger.info("attempted writing internals: {} {}@{}{}", request.getMethod(), user, host, target);
+			return;
+		}
+
+		var repository = repository(hostConfig);
 		var path = maven.resolve('.' + target);
-		if (Files.exists(path) && !target.contains("SNAPSHOT")
-				&& !target.regionMatches(target.lastIndexOf('/') + 1, "maven-metadata", 0, 14)) {
+
+		Session session = null;
+		if (sessionId != null) {
+			if (!Session.valid(sessionId)) {
+				response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+				response.getWriter().println("Invalid session.");
+				return;
+			}
+			if (!"PUT".equalsIgnoreCase(request.getMethod())) {
+				closeSession(repository, sessionId, user, host, request, response);
+				return;
+			}
+			session = repository.openSession(sessionId, user.username());
+			if (!session.owner.equals(user.username())) {
+				response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+				response.getWriter().println("Session belongs to another user.");
+
+				logger.info("attempted joining session: {} {}@{}{} ({})", request.getMethod(), user, host, target,
+						session);
+				return;
+			}
+			if (!session.touch()) {
+				response.setStatus(HttpServletResponse.SC_CONFLICT);
+				response.getWriter().println("Session is already closed.");
+				return;
+			}
+		}
+
+		// Sidecars of files this server has published are already known, and only
+		// need to be checked.
+		var checksum = Checksum.of(target);
+		if (checksum != null) {
+			// Metadata is merged rather than stored as uploaded, its sidecars are the server's.
+			if (path.getFileName().toString().equals(Metadata.FILE + checksum.suffix())) {
+				request.getInputStream().readNBytes(Repository.MAX_SIDECAR);
+				response.setStatus(HttpServletResponse.SC_CREATED);
+
+				logger.info("ignored metadata checksum: {} {}@{}{}", request.getMethod(), user, host, target);
+				return;
+			}
+			var expected = session == null ? null : session.expected(path, checksum);
+			if (expected == null) {
+				expected = repository.expected(path, checksum);
+			}
+			if (expected != null) {
+				verifyChecksum(expected, request, response, new Describe(request.getMethod(), user, host, target));
+				return;
+			}
+		}
+
+		if ((repository.exists(path) || (session != null && session.contains(path))) && !Repository.mutable(target)) {
 			response.setStatus(HttpServletResponse.SC_CONFLICT);
 			response.getWriter().println("File cannot be replaced or deleted once uploaded.");
 
@@ -138,7 +428,7 @@ public class Maven extends AbstractHandler {
 			return;
 		}
 		var parent = path.getParent();
-		if (Files.exists(parent) && !Files.isDirectory(parent)) {
+		if (repository.isFile(parent)) {
 			response.setStatus(HttpServletResponse.SC_CONFLICT);
 			response.getWriter().println("Package is a file.");
 
@@ -146,102 +436,484 @@ public class Maven extends AbstractHandler {
 			return;
 		}
 
-		Files.createDirectories(parent);
+		if (session == null) {
+			repository.createDirectories(parent);
+		}
+
+		if (path.getFileName().toString().equals(Metadata.FILE)) {
+			mergeMetadata(repository, session, path, request, response,
+					new Describe(request.getMethod(), user, host, target));
+			return;
+		}
+
+		// The body is streamed in as it arrives, releasing this thread back to Jetty.
+		// Stalled clients are instead dropped by the connector's idle timeout.
+		var async = request.startAsync();
+		async.setTimeout(0);
+		var description = new Describe(request.getMethod(), user, host, target);
+		long length = request.getContentLengthLong();
+		long limit = snapshot.maxUpload(host);
+		var throttle = throttle(snapshot, user.username());
+
+		// Small uploads such as metadata never wait behind large ones.
+		if (scheduler == null || (length >= 0 && length <= tuning.fastLane)) {
+			new Upload(async, request.getInputStream(), response, baseRequest.getHttpChannel().getByteBufferPool(),
+					repository, session, path, length, limit, description, events, throttle, null).start();
+			return;
+		}
+
+		var upload = new Upload(async, request.getInputStream(), response,
+				baseRequest.getHttpChannel().getByteBufferPool(), repository, session, path, length, limit, description,
+				events, throttle, scheduler::release);
+		// Bodies without a length are scheduled as if they'll reach the limit.
+		if (!scheduler.submit(new Flow(host, user.username()), snapshot.weight(host), length >= 0 ? length : limit,
+				upload::start)) {
+			response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			response.setHeader("Retry-After", Long.toString(tuning.retryAfter.toSeconds()));
+			response.getWriter().println("Too many uploads queued, try again later.");
+			async.complete();
+
+			logger.info("upload queue full: {}, {} queued", description, scheduler.queued());
+		}
+	}
+
+	/**
+	 * @param host The host's configuration.
+	 * @return The host's repository, opened if not yet.
+	 */
+	private Repository repository(Config.Host host) {
+		var root = host.path();
+		return repositories.computeIfAbsent(root, $ -> new Repository(host, tuning, () -> retention(root)));
+	}
+
+	/**
+	 * Opens the repository of every configured host, and closes those of hosts
+	 * that were removed or moved.
+	 * <p>
+	 * A request still on the previous config may open a closed repository
+	 * again, which is then closed by the next reload.
+	 */
+	private void openRepositories() {
+		var hosts = config.get().hosts().values();
+		var roots = new HashSet<Path>();
+		for (var host : hosts) {
+			if (host.path() != null) {
+				roots.add(host.path());
+				repository(host);
+			}
+		}
+		repositories.entrySet().removeIf(entry -> {
+			if (roots.contains(entry.getKey())) {
+				return false;
+			}
+			logger.info("Closing {}, no longer configured", entry.getKey());
+			entry.getValue().close();
+			return true;
+		});
+	}
+
+	/**
+	 * @param root The root of a repository.
+	 * @return Which builds of snapshots the repository keeps by the current
+	 *         config, or null to keep all.
+	 */
+	private Retention retention(Path root) {
+		var snapshot = config.get();
+		for (var host : snapshot.hosts().entrySet()) {
+			if (root.equals(host.getValue().path())) {
+				return snapshot.retention(host.getKey());
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param snapshot The config of the request.
+	 * @param user     The user uploading.
+	 * @return The bandwidth limit shared by all of the user's uploads, if any.
+	 */
+	private Throttle throttle(Snapshot snapshot, String user) {
+		long rate = snapshot.bandwidth(user);
+		if (rate <= 0) {
+			return null;
+		}
+		// Allows a second worth of burst, such that small uploads aren't paced at all.
+		return throttles.computeIfAbsent(user, $ -> new Throttle(rate, rate));
+	}
+
+	/**
+	 * Merges uploaded metadata into what the server already knows, such that
+	 * concurrent deploys of different versions don't lose each other's updates.
+	 * <p>
+	 * Metadata the server doesn't manage is stored as uploaded.
+	 *
+	 * @param repository  The repository to merge into.
+	 * @param session     The session to stage the metadata into instead, if any.
+	 * @param path        Where the metadata was uploaded to.
+	 * @param request     Source of the metadata.
+	 * @param response    Response to the uploader.
+	 * @param description Description of the request for logging.
+	 */
+	private static void mergeMetadata(Repository repository, Session session, Path path, HttpServletRequest request,
+			HttpServletResponse response, Describe description) throws IOException {
+		byte[] body;
 		try (var srvIn = request.getInputStream()) {
-			Files.copy(srvIn, path, StandardCopyOption.REPLACE_EXISTING);
+			body = srvIn.readNBytes(MAX_METADATA + 1);
 		}
+		if (body.length > MAX_METADATA) {
+			response.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+			response.getWriter().println("Metadata is too large.");
 
-		logger.info("successful upload: {} {}@{}{}", request.getMethod(), user, host, target);
+			logger.info("metadata too large: {}", description);
+			return;
+		}
+		Metadata uploaded;
+		try {
+			uploaded = Metadata.parse(body);
+		} catch (IOException ioe) {
+			response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+			response.getWriter().println("Malformed metadata.");
+
+			logger.info("malformed metadata: {}, {}", description, ioe.getMessage());
+			return;
+		}
+		if (session != null) {
+			// Merged once committed, alongside the rest of the session.
+			session.stage(path, body);
+			logger.info("staged metadata: {}", description);
+		} else if (repository.mergeMetadata(path, uploaded)) {
+			logger.info("merged metadata: {}", description);
+		} else {
+			repository.publish(path, body);
+			logger.info("successful upload: {}, {} bytes", description, body.length);
+		}
 		response.setStatus(HttpServletResponse.SC_CREATED);
 	}
 
-	private boolean checkPreconditions(Passwd.User user, Request baseRequest, HttpServletRequest request,
-			HttpServletResponse response) throws IOException {
-		boolean taint = "http".equals(request.getHeader("X-Forwarded-Proto"));
+	/**
+	 * Commits or discards a deploy session, by POST and DELETE respectively.
+	 *
+	 * @param repository The repository the session belongs to.
+	 * @param id         The name of the session.
+	 * @param user       The user closing the session, who must own it.
+	 * @param host       The host the session was deployed to.
+	 * @param request    Source of the method.
+	 * @param response   Response to the uploader.
+	 */
+	private void closeSession(Repository repository, String id, Passwd.User user, String host,
+			HttpServletRequest request, HttpServletResponse response) throws IOException {
+		var session = repository.session(id);
+		if (session == null) {
+			response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+			response.getWriter().println("No such session.");
+			return;
+		}
+		if (!session.owner.equals(user.username())) {
+			response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+			response.getWriter().println("Session belongs to another user.");
+
+			logger.info("attempted closing session: {} {} ({})", request.getMethod(), user, session);
+			return;
+		}
+		if ("DELETE".equalsIgnoreCase(request.getMethod())) {
+			if (repository.discard(session)) {
+				response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+				logger.info("discarded session: {} ({})", user, session);
+			} else {
+				response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+			}
+			return;
+		}
+		var conflicts = repository.commit(session);
+		if (conflicts == null) {
+			response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+			response.getWriter().println("No such session.");
+		} else if (!conflicts.isEmpty()) {
+			response.setStatus(HttpServletResponse.SC_CONFLICT);
+			var writer = response.getWriter();
+			writer.println("Session discarded, files cannot be replaced or deleted once uploaded:");
+			for (var conflict : conflicts) {
+				writer.println(conflict);
+			}
+
+			logger.info("conflicting session: {} ({}), {}", user, session, conflicts);
+		} else {
+			response.setStatus(HttpServletResponse.SC_OK);
+			response.getWriter().println("Committed.");
+
+			logger.info("committed session: {} ({})", user, session);
+			if (events != null) {
+				emit(repository, session, user, host);
+			}
+		}
+	}
+
+	/**
+	 * Mints a token by POST, limited to the {@code path} parameter for the
+	 * {@code ttl} parameter. DELETE revokes the token used, or every token of the
+	 * user if logged in by password.
+	 *
+	 * @param token The token used to log in, null if by password.
+	 */
+	private void token(Snapshot snapshot, String host, Passwd.User user, Tokens.Token token,
+			HttpServletRequest request, HttpServletResponse response) throws IOException {
+		var name = snapshot.name(host);
+		if ("DELETE".equalsIgnoreCase(request.getMethod())) {
+			if (token != null) {
+				Tokens.revoke(token);
+				logger.info("revoked token: {}@{} ({})", user, host, token);
+			} else {
+				Tokens.revokeAll(name, user.username());
+				logger.info("revoked all tokens: {}@{}", user, host);
+			}
+			response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+			return;
+		}
+		if (!"POST".equalsIgnoreCase(request.getMethod())) {
+			response.setStatus(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+			return;
+		}
+		if (token != null) {
+			response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+			response.getWriter().println("Tokens can only be minted by password.");
+			return;
+		}
+		final Duration ttl;
+		final String prefix;
+		try {
+			var requested = request.getParameter("ttl");
+			ttl = requested == null ? tuning.tokenTtl : Utils.parseDuration(requested);
+			prefix = Tokens.prefix(request.getParameter("path"));
+		} catch (IllegalArgumentException iae) {
+			response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+			response.getWriter().println(iae.getMessage());
+			return;
+		}
+		if (ttl.isZero() || ttl.isNegative() || ttl.compareTo(tuning.tokenMaxTtl) > 0) {
+			response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+			response.getWriter().println("ttl must be positive and at most " + tuning.tokenMaxTtl);
+			return;
+		}
+		var minted = Tokens.mint(name, snapshot.host(host), user.username(), prefix, ttl);
+		if (minted == null) {
+			// Removed since logging in.
+			response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+			return;
+		}
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setHeader("Cache-Control", "no-store");
+		response.setContentType("text/plain");
+		response.getWriter().println(minted);
+		logger.info("minted token: {}@{} for {} under {}", user, host, ttl, prefix);
+	}
+
+	/**
+	 * Emits every file published by a committed session.
+	 */
+	private void emit(Repository repository, Session session, Passwd.User user, String host) {
+		var time = Instant.now();
+		for (var entry : session.files().entrySet()) {
+			var relative = entry.getKey();
+			var name = relative.getFileName().toString();
+			if (Checksum.of(name) != null || name.equals(Metadata.FILE)) {
+				continue;
+			}
+			long size;
+			try {
+				size = Files.size(repository.root().resolve(relative.toString()));
+			} catch (IOException ioe) {
+				// Already replaced or collected.
+				continue;
+			}
+			events.emit(new UploadEvent(time, host, user.username(), '/' + relative.toString(), size,
+					entry.getValue().hex()));
+		}
+	}
+
+	/**
+	 * Compares an uploaded sidecar against the known checksum without writing it.
+	 *
+	 * @param expected    The lowercase hex digest the sidecar should contain.
+	 * @param request     Source of the sidecar.
+	 * @param response    The outgoing response for the client.
+	 * @param description What to log the upload as.
+	 */
+	private static void verifyChecksum(String expected, HttpServletRequest request, HttpServletResponse response,
+			Describe description) throws IOException {
+		byte[] body;
+		try (var srvIn = request.getInputStream()) {
+			body = srvIn.readNBytes(Repository.MAX_SIDECAR);
+		}
+		var actual = Repository.parse(body);
+		if (expected.equals(actual)) {
+			logger.info("verified checksum: {}", description);
+			response.setStatus(HttpServletResponse.SC_CREATED);
+		} else {
+			logger.warn("checksum mismatch: {}, expected {}, got {}", description, expected, actual);
+			response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+			response.getWriter().println("Checksum does not match the uploaded file.");
+		}
+	}
+
+	/**
+	 * What an upload is accounted against for fair scheduling.
+	 */
+	private record Flow(String host, String user) {
+	}
+
+	/**
+	 * A login as verified.
+	 *
+	 * @param snapshot   The config the login was verified against.
+	 * @param user       The user logging in, their password already cleared.
+	 * @param client     Who is logging in.
+	 * @param result     Whether the login succeeded, or null if verifying failed.
+	 * @param retryAfter How many nanoseconds until the client may try again, if
+	 *                   limited.
+	 */
+	private record Login(Snapshot snapshot, Passwd.User user, Gatekeeper.Client client, Passwd.Result result,
+			long retryAfter) {
+	}
+
+	/**
+	 * Lazy description of a request for logging.
+	 */
+	record Describe(String method, Passwd.User user, String host, String target) {
+		@Override
+		public String toString() {
+			return method + ' ' + user + '@' + host + target;
+		}
+	}
+
+	private boolean checkPreconditions(Snapshot snapshot, Passwd.User user, Path maven, boolean control,
+			Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
 		// No point in executing on any other.
 		baseRequest.setHandled(true);
-		if (!"PUT".equalsIgnoreCase(request.getMethod())) {
+		boolean upload = "PUT".equalsIgnoreCase(request.getMethod());
+		// Sessions are also committed by POST and discarded by DELETE, as tokens are
+		// minted and revoked.
+		if (!upload && !(control
+				&& ("POST".equalsIgnoreCase(request.getMethod()) || "DELETE".equalsIgnoreCase(request.getMethod())))) {
 			response.setStatus(HttpServletResponse.SC_NOT_IMPLEMENTED);
 			return false;
 		}
-		int contentLength = request.getContentLength();
-		// Ignore any upload that is too small or is too large (24M)
-		if (contentLength < 0) {
-			response.setStatus(HttpServletResponse.SC_LENGTH_REQUIRED);
-			return false;
-		}
-		if (contentLength > 1024 * 1024 * 24) {
+		var host = request.getHeader("Host");
+		// Bodies without a length, such as chunked uploads, are limited as they stream.
+		if (upload && request.getContentLengthLong() > snapshot.maxUpload(host)) {
 			response.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
 			return false;
 		}
 
-		var host = request.getHeader("Host");
-		var maven = config.location(host);
 		// Check to see if the host is valid.
 		if (maven == null) {
 			response.setStatus(HttpServletResponse.SC_NOT_FOUND);
 			return false;
 		}
-		// Check to see if the IP was banned from uploading.
-		// if(checkObject(baseRequest.getRemoteInetSocketAddress().getAddress())) {
-		// response.setStatus(HttpServletResponse.SC_FORBIDDEN);
-		// return;
-		// }
-		if (checkObject(request.getHeader("Authorization"))) {
+		if (user == null) {
 			response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+			response.setHeader("WWW-Authenticate", "Basic");
 			response.getWriter().println("Unacceptable Authorization Method");
 			return false;
 		}
 
-		try {
-			if (!Passwd.authorized(config, host, user, nonce, taint)) {
-				response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
-				response.getWriter().println("Invalid credentials.");
-				return false;
-			}
-		} catch (InterruptedException e) {
-			throw new RuntimeException(e);
-		}
-		if (taint) {
-			response.setStatus(HttpServletResponse.SC_FORBIDDEN);
-			response.getWriter().println("Use HTTPS next time. Password invalidated, contact sysadmin.");
-			return false;
-		}
-
 		return true;
 	}
 
 	/**
-	 * Checks if the object has not been denied.
+	 * Verifies the user's password, off of this thread if Argon2 has to run.
 	 *
-	 * @param object The object to hash then test.
-	 * @return true if denied, false otherwise
+	 * @return The login if verified straight away, else null once the request
+	 *         was suspended to be handled again with the login as
+	 *         {@link #LOGIN_ATTRIBUTE}.
 	 */
-	private boolean checkObject(Object object) {
-		int hash = hashWithNonce(object);
-		return deniedEntries[hash & (deniedEntries.length - 1)] == hash;
+	private Login authenticate(Snapshot snapshot, Passwd.User user, Request baseRequest, HttpServletRequest request) {
+		var host = request.getHeader("Host");
+		boolean taint = "http".equals(request.getHeader("X-Forwarded-Proto"));
+		// CF-Connecting-IP and X-Forwarded-For :blobfox_3c:
+		var client = Gatekeeper.Client.of(baseRequest, request, tuning.clientIpHeader, user.username());
+		var wait = new long[1];
+		var pending = Passwd.authorized(config, host, user, taint, () -> (wait[0] = gatekeeper.admit(client)) == 0);
+		// Remembered logins carry on without leaving the thread.
+		if (pending.isDone()) {
+			return new Login(snapshot, user, client, pending.join(), wait[0]);
+		}
+		// This thread is released back to Jetty, such that uploads already logged in
+		// aren't stuck behind Argon2.
+		var async = request.startAsync();
+		async.setTimeout(0);
+		pending.whenComplete((result, error) -> {
+			if (error != null) {
+				logger.error("Failed to verify {}@{}", user, host, error);
+			}
+			request.setAttribute(LOGIN_ATTRIBUTE, new Login(snapshot, user, client, result, wait[0]));
+			async.dispatch();
+		});
+		return null;
 	}
 
 	/**
-	 * Hashes the object then inserts the result into a small hashset.
+	 * Checks that the token permits the request. Tokens sent in the clear are
+	 * revoked.
 	 *
-	 * @param object The object to deny.
+	 * @return true if permitted.
 	 */
-	private void denyObject(Object object) {
-		int hash = hashWithNonce(object);
-		deniedEntries[hash & (deniedEntries.length - 1)] = hash;
+	private static boolean checkToken(Tokens.Token token, String target, HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		if ("http".equals(request.getHeader("X-Forwarded-Proto"))) {
+			Tokens.revoke(token);
+			response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+			response.getWriter().println("Use HTTPS next time. Token revoked.");
+			return false;
+		}
+		// Sessions are closed by whoever opened them, their uploads were already checked.
+		if ("PUT".equalsIgnoreCase(request.getMethod()) && !token.permits(target)) {
+			response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+			response.getWriter().println("Token does not permit uploading here.");
+			return false;
+		}
+		return true;
 	}
 
 	/**
-	 * Hashes the object with the {@link #nonce nonce}.
+	 * Responds to logins that were turned away.
 	 *
-	 * @param object The object to hash.
-	 * @return The object's hash with the nonce compounded on top.
-	 */
-	private static int hashWithNonce(Object object) {
-		int hash = object.hashCode();
-		for (int i = 0; i < nonceLength / 4; i++)
-			hash = 31 * hash + (int) Utils.BYTES_AS_INT.get(nonce, i);
-		return hash;
+	 * @return true if the login succeeded.
+	 */
+	private boolean checkLogin(Login login, HttpServletResponse response) throws IOException {
+		if (login.result() == null) {
+			response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			return false;
+		}
+		switch (login.result()) {
+			case LIMITED -> {
+				response.setStatus(429);
+				response.setHeader("Retry-After",
+						Long.toString(Math.max(1, TimeUnit.NANOSECONDS.toSeconds(login.retryAfter()))));
+				response.getWriter().println("Too many logins, try again later.");
+				return false;
+			}
+			case BUSY -> {
+				response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+				response.setHeader("Retry-After", Long.toString(tuning.retryAfter.toSeconds()));
+				response.getWriter().println("Too many logins being verified, try again later.");
+				return false;
+			}
+			case REJECTED -> {
+				gatekeeper.failure(login.client());
+				response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+				response.getWriter().println("Invalid credentials.");
+				return false;
+			}
+			case TAINTED -> {
+				// The password was right, so it's not held against the client.
+				gatekeeper.success(login.client());
+				response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+				response.getWriter().println("Use HTTPS next time. Password invalidated, contact sysadmin.");
+				return false;
+			}
+			case ACCEPTED -> gatekeeper.success(login.client());
+		}
+
+		return true;
 	}
 }
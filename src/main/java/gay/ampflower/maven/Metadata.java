@@ -0,0 +1,389 @@
+/* Copyright 2023 Ampflower
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package gay.ampflower.maven;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+/**
+ * Model of a {@code maven-metadata.xml}, either at the artifact level listing
+ * every version, or at the version level listing every build of a snapshot.
+ * <p>
+ * The server owns these files, merging in every uploaded version rather than
+ * letting clients overwrite each other's.
+ *
+ * @author Ampflower
+ * @since 0.1.0
+ */
+final class Metadata {
+	static final String FILE = "maven-metadata.xml";
+	private static final String SNAPSHOT = "SNAPSHOT";
+	private static final DateTimeFormatter LAST_UPDATED = DateTimeFormatter.ofPattern("yyyyMMddHHmmss")
+			.withZone(ZoneOffset.UTC);
+	private static final Pattern TIMESTAMP = Pattern.compile("(\\d{8}\\.\\d{6})-(\\d+)");
+
+	final String groupId;
+	final String artifactId;
+	/**
+	 * The snapshot version for version level metadata, else null.
+	 */
+	final String version;
+
+	private final Set<String> versions = new LinkedHashSet<>();
+	private final Map<String, SnapshotVersion> snapshotVersions = new LinkedHashMap<>();
+	private String latest;
+	private String release;
+	private String lastUpdated;
+	private String timestamp;
+	private int buildNumber;
+
+	Metadata(String groupId, String artifactId, String version) {
+		this.groupId = Objects.requireNonNull(groupId, "groupId");
+		this.artifactId = Objects.requireNonNull(artifactId, "artifactId");
+		this.version = version;
+	}
+
+	/**
+	 * Adds a deployed version to artifact level metadata.
+	 *
+	 * @return true if the metadata changed.
+	 */
+	boolean addVersion(String version) {
+		boolean changed = versions.add(version) | !version.equals(latest);
+		latest = version;
+		if (!isSnapshot(version) && !version.equals(release)) {
+			release = version;
+			changed = true;
+		}
+		if (changed) {
+			touch();
+		}
+		return changed;
+	}
+
+	/**
+	 * Removes builds from version level metadata.
+	 *
+	 * @param values The versions of the builds, such as
+	 *               {@code 1.0-20230101.000000-1}.
+	 * @return true if the metadata changed.
+	 */
+	boolean removeSnapshots(Set<String> values) {
+		boolean changed = snapshotVersions.values().removeIf(entry -> values.contains(entry.value));
+		if (changed) {
+			touch();
+		}
+		return changed;
+	}
+
+	/**
+	 * Adds a deployed file to version level metadata.
+	 *
+	 * @param file The name of the file within the snapshot's directory.
+	 * @return true if the metadata changed.
+	 */
+	boolean addSnapshot(String file) {
+		var base = version.substring(0, version.length() - SNAPSHOT.length());
+		var prefix = artifactId + '-' + base;
+		if (!file.startsWith(prefix)) {
+			return false;
+		}
+		String value, updated, remainder;
+		var matcher = TIMESTAMP.matcher(file).region(prefix.length(), file.length());
+		if (matcher.lookingAt()) {
+			value = base + matcher.group();
+			updated = matcher.group(1).replace(".", "");
+			remainder = file.substring(matcher.end());
+			int build = Integer.parseInt(matcher.group(2));
+			if (build >= buildNumber) {
+				buildNumber = build;
+				timestamp = matcher.group(1);
+			}
+		} else if (file.startsWith(SNAPSHOT, prefix.length())) {
+			// Non-unique snapshots overwrite each other instead.
+			value = version;
+			updated = LAST_UPDATED.format(Instant.now());
+			remainder = file.substring(prefix.length() + SNAPSHOT.length());
+		} else {
+			return false;
+		}
+		String classifier;
+		String extension;
+		if (remainder.startsWith(".")) {
+			classifier = "";
+			extension = remainder.substring(1);
+		} else if (remainder.startsWith("-") && remainder.indexOf('.') > 1) {
+			int dot = remainder.indexOf('.');
+			classifier = remainder.substring(1, dot);
+			extension = remainder.substring(dot + 1);
+		} else {
+			return false;
+		}
+		var entry = new SnapshotVersion(classifier, extension, value, updated);
+		var key = entry.key();
+		var old = snapshotVersions.get(key);
+		if (old != null && old.updated.compareTo(updated) > 0) {
+			return false;
+		}
+		if (entry.equals(old)) {
+			return false;
+		}
+		snapshotVersions.put(key, entry);
+		touch();
+		return true;
+	}
+
+	/**
+	 * Merges metadata uploaded by a client into this, such that concurrent
+	 * deployments don't lose each other's versions.
+	 *
+	 * @return true if the metadata changed.
+	 */
+	boolean merge(Metadata other) {
+		boolean changed = versions.addAll(other.versions);
+		if (latest == null && other.latest != null) {
+			latest = other.latest;
+			changed = true;
+		}
+		if (release == null && other.release != null) {
+			release = other.release;
+			changed = true;
+		}
+		if (other.timestamp != null && other.buildNumber > buildNumber) {
+			timestamp = other.timestamp;
+			buildNumber = other.buildNumber;
+			changed = true;
+		}
+		for (var entry : other.snapshotVersions.values()) {
+			var old = snapshotVersions.get(entry.key());
+			if (old == null || old.updated.compareTo(entry.updated) < 0) {
+				snapshotVersions.put(entry.key(), entry);
+				changed = true;
+			}
+		}
+		if (changed) {
+			touch();
+		}
+		return changed;
+	}
+
+	private void touch() {
+		lastUpdated = LAST_UPDATED.format(Instant.now());
+	}
+
+	/**
+	 * @return The metadata as UTF-8 XML.
+	 */
+	byte[] render() {
+		var sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		sb.append(version == null ? "<metadata>\n" : "<metadata modelVersion=\"1.1.0\">\n");
+		element(sb, 1, "groupId", groupId);
+		element(sb, 1, "artifactId", artifactId);
+		element(sb, 1, "version", version);
+		sb.append("  <versioning>\n");
+		element(sb, 2, "latest", latest);
+		element(sb, 2, "release", release);
+		if (timestamp != null) {
+			sb.append("    <snapshot>\n");
+			element(sb, 3, "timestamp", timestamp);
+			element(sb, 3, "buildNumber", Integer.toString(buildNumber));
+			sb.append("    </snapshot>\n");
+		}
+		if (!versions.isEmpty()) {
+			sb.append("    <versions>\n");
+			for (var v : versions) {
+				element(sb, 3, "version", v);
+			}
+			sb.append("    </versions>\n");
+		}
+		element(sb, 2, "lastUpdated", lastUpdated);
+		if (!snapshotVersions.isEmpty()) {
+			sb.append("    <snapshotVersions>\n");
+			for (var entry : snapshotVersions.values()) {
+				sb.append("      <snapshotVersion>\n");
+				if (!entry.classifier.isEmpty()) {
+					element(sb, 4, "classifier", entry.classifier);
+				}
+				element(sb, 4, "extension", entry.extension);
+				element(sb, 4, "value", entry.value);
+				element(sb, 4, "updated", entry.updated);
+				sb.append("      </snapshotVersion>\n");
+			}
+			sb.append("    </snapshotVersions>\n");
+		}
+		sb.append("  </versioning>\n</metadata>\n");
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static void element(StringBuilder sb, int depth, String name, String value) {
+		if (value == null) {
+			return;
+		}
+		sb.append("  ".repeat(depth)).append('<').append(name).append('>');
+		for (int i = 0, l = value.length(); i < l; i++) {
+			char c = value.charAt(i);
+			switch (c) {
+				case '<' -> sb.append("&lt;");
+				case '>' -> sb.append("&gt;");
+				case '&' -> sb.append("&amp;");
+				default -> sb.append(c);
+			}
+		}
+		sb.append("</").append(name).append(">\n");
+	}
+
+	/**
+	 * Parses artifact or version level metadata.
+	 *
+	 * @param xml The raw {@code maven-metadata.xml}.
+	 * @return The parsed metadata, or null if it isn't artifact or version level,
+	 *         such as the plugin listing of a group.
+	 * @throws IOException If the XML is malformed.
+	 */
+	static Metadata parse(byte[] xml) throws IOException {
+		final Element root;
+		try {
+			var factory = DocumentBuilderFactory.newInstance();
+			// Clients have no business referencing anything outside of the document.
+			factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+			factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+			factory.setXIncludeAware(false);
+			factory.setExpandEntityReferences(false);
+			root = factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml)).getDocumentElement();
+		} catch (ParserConfigurationException | SAXException e) {
+			throw new IOException("Invalid metadata", e);
+		}
+		var groupId = text(root, "groupId");
+		var artifactId = text(root, "artifactId");
+		if (groupId == null || artifactId == null || child(root, "plugins") != null) {
+			return null;
+		}
+		var version = text(root, "version");
+		var metadata = new Metadata(groupId, artifactId, isSnapshot(version) ? version : null);
+		var versioning = child(root, "versioning");
+		if (versioning == null) {
+			return metadata;
+		}
+		metadata.latest = text(versioning, "latest");
+		metadata.release = text(versioning, "release");
+		metadata.lastUpdated = text(versioning, "lastUpdated");
+		var versions = child(versioning, "versions");
+		if (versions != null) {
+			for (var v : children(versions, "version")) {
+				metadata.versions.add(v.getTextContent().strip());
+			}
+		}
+		var snapshot = child(versioning, "snapshot");
+		if (snapshot != null) {
+			metadata.timestamp = text(snapshot, "timestamp");
+			var buildNumber = text(snapshot, "buildNumber");
+			if (buildNumber != null) {
+				metadata.buildNumber = Integer.parseInt(buildNumber);
+			}
+		}
+		var snapshotVersions = child(versioning, "snapshotVersions");
+		if (snapshotVersions != null) {
+			for (var entry : children(snapshotVersions, "snapshotVersion")) {
+				var parsed = new SnapshotVersion(Objects.requireNonNullElse(text(entry, "classifier"), ""),
+						text(entry, "extension"), text(entry, "value"),
+						Objects.requireNonNullElse(text(entry, "updated"), ""));
+				if (parsed.extension != null && parsed.value != null) {
+					metadata.snapshotVersions.put(parsed.key(), parsed);
+				}
+			}
+		}
+		return metadata;
+	}
+
+	private static Element child(Element parent, String name) {
+		for (var node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+			if (node.getNodeType() == Node.ELEMENT_NODE && name.equals(node.getNodeName())) {
+				return (Element) node;
+			}
+		}
+		return null;
+	}
+
+	private static List<Element> children(Element parent, String name) {
+		var list = new ArrayList<Element>();
+		for (var node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+			if (node.getNodeType() == Node.ELEMENT_NODE && name.equals(node.getNodeName())) {
+				list.add((Element) node);
+			}
+		}
+		return list;
+	}
+
+	private static String text(Element parent, String name) {
+		var child = child(parent, name);
+		return child == null ? null : child.getTextContent().strip();
+	}
+
+	static boolean isSnapshot(String version) {
+		return version != null && version.endsWith(SNAPSHOT);
+	}
+
+	/**
+	 * Coordinates of a file within a Maven repository.
+	 *
+	 * @param groupId    The dotted group.
+	 * @param artifactId The artifact.
+	 * @param version    The version.
+	 * @param file       The name of the file within the version's directory.
+	 */
+	record Coordinates(String groupId, String artifactId, String version, String file) {
+		/**
+		 * @param relative The path of the file relative to the repository root.
+		 * @return The coordinates, or null if the path cannot be a deployed file.
+		 */
+		static Coordinates of(Path relative) {
+			int count = relative.getNameCount();
+			if (count < 4) {
+				return null;
+			}
+			var group = new StringBuilder(relative.getName(0).toString());
+			for (int i = 1; i < count - 3; i++) {
+				group.append('.').append(relative.getName(i));
+			}
+			var artifactId = relative.getName(count - 3).toString();
+			var version = relative.getName(count - 2).toString();
+			var file = relative.getName(count - 1).toString();
+			var base = isSnapshot(version) ? version.substring(0, version.length() - SNAPSHOT.length()) : version;
+			if (!file.startsWith(artifactId + '-' + base)) {
+				return null;
+			}
+			return new Coordinates(group.toString(), artifactId, version, file);
+		}
+	}
+
+	private record SnapshotVersion(String classifier, String extension, String value, String updated) {
+		String key() {
+			return classifier + ':' + extension;
+		}
+	}
+}
@@ -6,31 +6,121 @@
 
 package gay.ampflower.maven;
 
+import gay.ampflower.maven.concurrent.DeadlineExecutor;
 import gay.ampflower.maven.concurrent.ResourceLimiter;
 import org.bouncycastle.util.Arrays;
-
-import java.lang.invoke.MethodHandles;
-import java.lang.invoke.VarHandle;
-import java.util.Queue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
 
 /**
  * @author Ampflower
  * @since 0.1.0
  */
 public final class Passwd {
+	private static final Logger logger = LoggerFactory.getLogger(Passwd.class);
 	private static final long K = 1024L, M = K * K, K8 = 8 * K, M8 = 8 * M;
 
-	private static final ResourceLimiter limiter = new ResourceLimiter(Runtime.getRuntime().maxMemory() - M8, M8 + K8);
+	private static final long BUDGET = Runtime.getRuntime().maxMemory() - M8;
+	private static final ResourceLimiter limiter = new ResourceLimiter(BUDGET, M8 + K8);
+
+	private static final int NONCE_LENGTH = 64;
 
-	private static final ConcurrentMap<Sha256Hash, Carrier> map = new ConcurrentHashMap<>();
+	/**
+	 * Logins verified recently, least recently used first. Guarded by itself.
+	 */
+	private static final LinkedHashMap<Sha256Hash, Carrier> map = new LinkedHashMap<>(64, 0.75F, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Carrier> eldest) {
+			return size() > cacheSize;
+		}
+	};
+
+	private static volatile int cacheSize = 4096;
+	private static volatile long ttl = TimeUnit.MINUTES.toNanos(5);
+	private static volatile long negativeTtl = TimeUnit.SECONDS.toNanos(10);
+	private static volatile boolean sliding;
+
+	/**
+	 * Runs Argon2 off of Jetty's threads, such that they keep serving uploads
+	 * that are already logged in.
+	 */
+	private static volatile DeadlineExecutor executor;
+	private static volatile long deadline = TimeUnit.SECONDS.toNanos(10);
+	/**
+	 * How long a rehash may wait for, far enough out that logins go first.
+	 */
+	private static final long REHASH_DEADLINE = TimeUnit.MINUTES.toNanos(1);
+	/**
+	 * Hashes being replaced, such that logins in quick succession only rehash
+	 * once.
+	 */
+	private static final Set<String> rehashing = ConcurrentHashMap.newKeySet();
+	private static long reported;
+
+	/**
+	 * Keys logins in the cache, such that they're difficult to recover from it.
+	 * Renewed hourly, with logins keyed by the previous nonce moved over as
+	 * they're next used rather than all verified again at once.
+	 */
+	private static volatile Nonces nonces = new Nonces(nonce(), nonce());
 
 	static {
-		Utils.scheduler.scheduleWithFixedDelay(map::clear, 30, 30, TimeUnit.SECONDS);
+		Utils.scheduler.scheduleWithFixedDelay(() -> nonces = new Nonces(nonce(), nonces.current), 1, 1,
+				TimeUnit.HOURS);
+		Utils.scheduler.scheduleWithFixedDelay(Passwd::purge, 1, 1, TimeUnit.MINUTES);
+		Utils.scheduler.scheduleWithFixedDelay(Passwd::report, 1, 1, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Configures the login cache and Argon2's threads from the {@code [server]}
+	 * section.
+	 */
+	static synchronized void configure(Tuning tuning) {
+		cacheSize = tuning.authCacheSize;
+		ttl = tuning.authCacheTtl.toNanos();
+		negativeTtl = tuning.authNegativeTtl.toNanos();
+		sliding = tuning.authCacheSliding;
+		deadline = tuning.argon2Deadline.toNanos();
+		// Any more threads than fit the memory budget would only wait on the limiter.
+		int threads = tuning.argon2Threads > 0 ? tuning.argon2Threads
+				: (int) Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), BUDGET / (M8 + K8)));
+		// One arena per thread, such that verifying doesn't allocate once warm.
+		Argon2Engine.retain(threads);
+		if (tuning.argon2Helpers >= 0) {
+			Argon2Engine.help(tuning.argon2Helpers);
+		}
+		var previous = executor;
+		executor = new DeadlineExecutor("argon2", threads, tuning.argon2Queue);
+		if (previous != null) {
+			previous.shutdown();
+		}
+	}
+
+	/**
+	 * @return The threads running Argon2, configured on first use if not yet.
+	 */
+	private static DeadlineExecutor executor() {
+		var executor = Passwd.executor;
+		if (executor == null) {
+			synchronized (Passwd.class) {
+				if ((executor = Passwd.executor) == null) {
+					configure(new Tuning());
+					executor = Passwd.executor;
+				}
+			}
+		}
+		return executor;
 	}
 
 	public static User user(String authorization) {
@@ -51,42 +141,193 @@ public final class Passwd {
 		return new User(username, password);
 	}
 
-	public static boolean authorized(Config config, String host, User user, byte[] nonce, boolean taint)
-			throws InterruptedException {
+	/**
+	 * Verifies the user's password, remembering the outcome for a while.
+	 * <p>
+	 * Remembered logins complete straight away, while anything else completes
+	 * on Argon2's threads. The password is cleared once no longer needed.
+	 *
+	 * @param config The config to verify against.
+	 * @param host   The host domain for the maven.
+	 * @param user   The user logging in.
+	 * @param taint  Whether the password was sent in the clear, refusing the
+	 *               user from now on if it's correct.
+	 * @param admit  Asked before running Argon2 for a login not remembered,
+	 *               such that it may be rate limited.
+	 * @return Whether the login succeeded, was tainted, or was turned away by
+	 *         admit or for Argon2 being too busy.
+	 */
+	public static CompletableFuture<Result> authorized(Reloader config, String host, User user, boolean taint,
+			BooleanSupplier admit) {
 		var username = user.username();
 		var password = user.password();
-		boolean flag;
 
-		var hash = config.authHashKey(host, username, password, nonce);
+		var snapshot = config.get();
+		var nonces = Passwd.nonces;
+		var hash = snapshot.authHashKey(host, username, password, nonces.current);
+
+		if (hash == null) {
+			// Unknown users have nothing to verify against.
+			Arrays.clear(password);
+			return CompletableFuture.completedFuture(Result.REJECTED);
+		}
 
-		final var either = tryLease(hash);
-		if (either.a != null) {
-			flag = either.a.value(taint);
+		final var either = tryLease(hash, () -> snapshot.authHashKey(host, username, password, nonces.previous),
+				snapshot.name(host), username, admit);
+		CompletableFuture<Result> result;
+		if (either == null) {
+			Arrays.clear(password);
+			return CompletableFuture.completedFuture(Result.LIMITED);
+		} else if (either.a != null) {
+			Arrays.clear(password);
+			result = either.a.value(taint);
 		} else {
-			flag = either.b.complete(config.authorized(host, username, password), taint);
+			final var trial = either.b;
+			result = trial.value(taint);
+			final Runnable shed = () -> {
+				Arrays.clear(password);
+				synchronized (map) {
+					map.remove(hash, trial);
+				}
+				trial.shed();
+			};
+			if (!executor().submit(System.nanoTime() + deadline, () -> {
+				try {
+					final boolean success = snapshot.authorized(host, username, password);
+					trial.complete(success, taint);
+					if (success && !taint) {
+						rehash(config, snapshot, host, username, password);
+					}
+				} catch (RuntimeException | Error e) {
+					shed.run();
+					throw e;
+				} finally {
+					Arrays.clear(password);
+				}
+			}, shed)) {
+				shed.run();
+			}
 		}
 
-		Arrays.clear(password);
+		return result.thenApply(outcome -> {
+			if (outcome == Result.TAINTED) {
+				config.taint(host, username);
+			}
+			return outcome;
+		});
+	}
 
-		if (flag && taint) {
-			config.taint(host, username);
+	/**
+	 * Hashes the password again in the background if its hash isn't at the
+	 * configured cost, such that raising the cost applies to users as they next
+	 * log in.
+	 *
+	 * @param password The verified password, copied as it's cleared after.
+	 */
+	private static void rehash(Reloader config, Snapshot snapshot, String host, String user, byte[] password) {
+		final var name = snapshot.name(host);
+		final var auth = snapshot.host(host);
+		final var hash = auth.users.get(user);
+		final var cost = snapshot.cost();
+		if (hash == null || cost.matches(hash) || !rehashing.add(hash)) {
+			return;
 		}
+		final var copy = password.clone();
+		final Runnable done = () -> {
+			Arrays.clear(copy);
+			rehashing.remove(hash);
+		};
+		if (!executor().submit(System.nanoTime() + REHASH_DEADLINE, () -> {
+			try (var lease = limiter.acquire(cost.memory() * K + K8)) {
+				config.rehash(name, user, hash, Argon2.generate(copy, auth.secret, cost));
+			} catch (InterruptedException interruptedException) {
+				throw new RuntimeException(interruptedException);
+			} finally {
+				done.run();
+			}
+		}, done)) {
+			done.run();
+		}
+	}
 
-		return flag;
+	/**
+	 * Drops cached logins, such that they're verified against the config anew.
+	 *
+	 * @param host The name of the host, null for the global configuration.
+	 * @param user The user to drop, or null for every user of the host.
+	 */
+	static void invalidate(String host, String user) {
+		synchronized (map) {
+			map.values().removeIf(carrier -> carrier.matches(host, user));
+		}
+	}
+
+	/**
+	 * Removes expired logins, such that they don't linger until evicted.
+	 */
+	private static void purge() {
+		long now = System.nanoTime();
+		synchronized (map) {
+			map.values().removeIf(carrier -> carrier.expired(now));
+		}
+	}
+
+	/**
+	 * Logs Argon2's counters if any logins were verified since last time.
+	 */
+	private static void report() {
+		var executor = Passwd.executor;
+		if (executor == null) {
+			return;
+		}
+		long total = executor.executed() + executor.rejected() + executor.expired();
+		if (total != reported) {
+			reported = total;
+			logger.info("Argon2: {}, longest wait {}ms", executor, executor.maxWait() / 1_000_000);
+		}
+	}
+
+	private static byte[] nonce() {
+		var nonce = new byte[NONCE_LENGTH];
+		Utils.getRandom().nextBytes(nonce);
+		return nonce;
+	}
+
+	/**
+	 * @return How long a login is cached for, less up to a fifth, such that
+	 *         logins cached together aren't all verified again together.
+	 */
+	private static long jitter(long ttl) {
+		return ttl - ThreadLocalRandom.current().nextLong(ttl / 5 + 1);
 	}
 
 	public static boolean verify(String input, byte[] password, byte[] secret) {
 		final var decoded = Argon2.decode(input, secret);
-		try {
-			limiter.acquire(decoded.parameters().getMemory() * K + K8);
+		try (var lease = limiter.acquire(decoded.parameters().getMemory() * K + K8)) {
 			return Argon2.verify(decoded, password);
 		} catch (InterruptedException interruptedException) {
 			throw new RuntimeException(interruptedException);
-		} finally {
-			limiter.release();
 		}
 	}
 
+	public enum Result {
+		ACCEPTED, REJECTED,
+		/**
+		 * The password is right but was sent in the clear, such that the user is
+		 * refused from now on.
+		 */
+		TAINTED,
+		/**
+		 * Turned away before verifying, the password is neither right nor wrong.
+		 */
+		LIMITED,
+		/**
+		 * Turned away as Argon2 is too busy, the password is neither right nor
+		 * wrong.
+		 */
+		BUSY
+	}
+
 	public record User(String username, byte[] password) implements AutoCloseable {
 		// #close() is only used to have the IDE nag if you don't "close" the record.
 		public void close() {
@@ -99,21 +340,45 @@ public final class Passwd {
 		}
 	}
 
-	private static Either<Carrier, Carrier> tryLease(Sha256Hash key) {
-		final var current = map.get(key);
-		if (current != null) {
-			return Either.a(current);
-		}
-
-		final var trial = new Carrier();
-
-		final var old = map.putIfAbsent(key, trial);
+	/**
+	 * @param key      The key of the login.
+	 * @param previous The key of the login by the previous nonce.
+	 * @param host     The name of the host, null for the global configuration.
+	 * @param user     The user logging in.
+	 * @param admit    Asked before leasing a new login.
+	 * @return The cached login as a, else a new login to complete as b, or null
+	 *         if not admitted.
+	 */
+	private static Either<Carrier, Carrier> tryLease(Sha256Hash key, Supplier<Sha256Hash> previous, String host,
+			String user, BooleanSupplier admit) {
+		final long now = System.nanoTime();
+		synchronized (map) {
+			var current = map.get(key);
+			if (current == null) {
+				// Moved over lazily, such that renewing the nonce isn't a cliff.
+				final var old = previous.get();
+				current = old == null ? null : map.remove(old);
+				if (current != null) {
+					map.put(key, current);
+				}
+			}
+			if (current != null && !current.expired(now)) {
+				if (sliding) {
+					current.extend(now);
+				}
+				return Either.a(current);
+			}
 
-		if (old != null) {
-			return Either.a(old);
+			if (!admit.getAsBoolean()) {
+				return null;
+			}
+			final var trial = new Carrier(host, user);
+			map.put(key, trial);
+			return Either.b(trial);
 		}
+	}
 
-		return Either.b(trial);
+	private record Nonces(byte[] current, byte[] previous) {
 	}
 
 	private record Either<A, B> (A a, B b) {
@@ -127,69 +392,92 @@ public final class Passwd {
 	}
 
 	private static class Carrier {
+		private final String host;
+		private final String user;
+		/**
+		 * Completed once verified, or shed.
+		 */
+		private final CompletableFuture<Void> done = new CompletableFuture<>();
+		/**
+		 * When the login expires, by {@link System#nanoTime()}. Pending logins never
+		 * expire.
+		 */
+		private volatile long expires = Long.MAX_VALUE;
 		private volatile boolean taint;
-		private boolean success;
-		private volatile Queue<Thread> threadQueue;
+		/**
+		 * Whether the password is right, regardless of taint.
+		 */
+		private volatile boolean verified;
+		private volatile boolean shed;
+
+		Carrier(String host, String user) {
+			this.host = host;
+			this.user = user;
+		}
 
-		private static final VarHandle threadQueueHandle;
+		boolean expired(long now) {
+			return expires - now < 0;
+		}
 
-		static {
-			try {
-				final var lookup = MethodHandles.lookup();
-				threadQueueHandle = lookup.findVarHandle(Carrier.class, "threadQueue", Queue.class);
-			} catch (ReflectiveOperationException e) {
-				throw new ExceptionInInitializerError(e);
+		/**
+		 * Extends a successful login by another full lifetime.
+		 */
+		void extend(long now) {
+			if (this.done.isDone() && this.verified && !this.taint) {
+				this.expires = now + jitter(ttl);
 			}
 		}
 
-		{
-			// Relaxed set as publishing is when being stored in a hashmap.
-			threadQueueHandle.set(this, new LinkedBlockingQueue<Thread>());
+		boolean matches(String host, String user) {
+			return Objects.equals(this.host, host) && (user == null || this.user.equals(user));
 		}
 
-		boolean value(boolean taint) throws InterruptedException {
+		/**
+		 * @param taint Whether this login sent the password in the clear. Only
+		 *              that login is told it's {@link Result#TAINTED}, anyone
+		 *              after is refused.
+		 */
+		CompletableFuture<Result> value(boolean taint) {
 			taint(taint);
-
-			final var queue = threadQueue;
-			if (queue != null) {
-				queue.add(Thread.currentThread());
-				hold();
-			}
-
-			return this.success;
+			return done.thenApply($ -> {
+				if (shed) {
+					return Result.BUSY;
+				} else if (!verified) {
+					return Result.REJECTED;
+				} else if (taint) {
+					return Result.TAINTED;
+				}
+				return this.taint ? Result.REJECTED : Result.ACCEPTED;
+			});
 		}
 
 		void taint(boolean taint) {
 			if (taint) {
 				this.taint = true;
-				this.success = false;
 			}
 		}
 
-		boolean complete(boolean success, boolean taint) {
+		void complete(boolean verified, boolean taint) {
 			taint(taint);
-			final var queue = this.threadQueue;
 
-			if (queue == null) {
-				throw new IllegalStateException("completed already, race condition? v=" + this.success);
+			if (done.isDone()) {
+				throw new IllegalStateException("completed already, race condition? v=" + this.verified);
 			}
 
-			this.success = success &= !this.taint;
-
-			this.threadQueue = null;
-			queue.forEach(LockSupport::unpark);
+			this.verified = verified;
+			// Failures are cached briefly, such that retries aren't verified again,
+			// but a typo isn't held against the user for long.
+			this.expires = System.nanoTime() + jitter(verified && !this.taint ? ttl : negativeTtl);
 
-			return success;
+			done.complete(null);
 		}
 
-		private void hold() throws InterruptedException {
-			while (this.threadQueue != null) {
-				LockSupport.park(this);
-
-				if (Thread.interrupted()) {
-					throw new InterruptedException();
-				}
-			}
+		/**
+		 * Gives up on verifying, turning away everyone waiting on it.
+		 */
+		void shed() {
+			this.shed = true;
+			done.complete(null);
 		}
 	}
 }
@@ -0,0 +1,352 @@
+/* Copyright 2023 Ampflower
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package gay.ampflower.maven;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * In-memory index of every file & directory within a repository, sparing
+ * uploads from stat-ing the disk.
+ * <p>
+ * Stored as a tree of directories, each holding a sorted array of the names of
+ * the files within it. Most directories in a Maven repository hold a handful
+ * of files and are written to rarely, so copying the array on write costs
+ * less than a node per file would.
+ * <p>
+ * Until the initial walk completes, or if the index can no longer be kept
+ * consistent, {@link #authoritative()} is false and callers must fall back to
+ * the disk.
+ *
+ * @author Ampflower
+ * @since 0.1.0
+ */
+final class PathIndex {
+	private static final Logger logger = LoggerFactory.getLogger(PathIndex.class);
+	private static final String[] EMPTY = new String[0];
+
+	private final Path root;
+	private final Path internal;
+	private final Directory tree = new Directory();
+	private final WatchService watcher;
+	private volatile boolean ready;
+	private volatile boolean consistent = true;
+
+	/**
+	 * @param root  The repository to index.
+	 * @param watch Whether to watch the repository for changes made by anything
+	 *              other than this server.
+	 */
+	PathIndex(Path root, boolean watch) throws IOException {
+		this.root = normalize(root);
+		this.internal = this.root.resolve(Config.INTERNAL);
+		this.watcher = watch ? root.getFileSystem().newWatchService() : null;
+	}
+
+	/**
+	 * Walks the repository in parallel, then starts watching it if enabled.
+	 * <p>
+	 * Meant to be run in the background, the index is usable, if not
+	 * authoritative, in the meantime.
+	 */
+	void build() {
+		long start = System.nanoTime();
+		try {
+			new Walk(root, tree).invoke();
+		} catch (RuntimeException e) {
+			logger.warn("Failed to index {}, falling back to disk", root, e);
+			invalidate();
+			return;
+		}
+		ready = true;
+		logger.info("Indexed {} in {}ms", root, (System.nanoTime() - start) / 1_000_000);
+		if (watcher != null) {
+			var thread = new Thread(this::watch, "index watcher " + root);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * @return true if the answers of the index can be trusted over the disk.
+	 */
+	boolean authoritative() {
+		return ready && consistent;
+	}
+
+	/**
+	 * @param path The path within the repository.
+	 * @return true if the path is an indexed file.
+	 */
+	boolean isFile(Path path) {
+		path = normalize(path);
+		var parent = directory(path.getParent());
+		return parent != null && parent.hasFile(path.getFileName().toString());
+	}
+
+	/**
+	 * @param path The path within the repository.
+	 * @return true if the path is an indexed directory.
+	 */
+	boolean isDirectory(Path path) {
+		return directory(normalize(path)) != null;
+	}
+
+	/**
+	 * Indexes a file and all of its parents.
+	 */
+	void addFile(Path path) {
+		path = normalize(path);
+		var parent = createDirectory(path.getParent());
+		if (parent != null) {
+			parent.addFile(path.getFileName().toString());
+		}
+	}
+
+	/**
+	 * Indexes a directory and all of its parents.
+	 */
+	void addDirectory(Path path) {
+		createDirectory(normalize(path));
+	}
+
+	/**
+	 * Removes a file or directory from the index.
+	 */
+	void remove(Path path) {
+		path = normalize(path);
+		if (path.equals(root)) {
+			return;
+		}
+		var parent = directory(path.getParent());
+		if (parent != null) {
+			var name = path.getFileName().toString();
+			parent.removeFile(name);
+			var children = parent.children;
+			if (children != null) {
+				children.remove(name);
+			}
+		}
+	}
+
+	/**
+	 * Stops watching the repository, as it's no longer served.
+	 */
+	void close() {
+		invalidate();
+	}
+
+	/**
+	 * Marks the index as no longer consistent with the disk, for good.
+	 */
+	private void invalidate() {
+		consistent = false;
+		if (watcher != null) {
+			try {
+				watcher.close();
+			} catch (IOException ioe) {
+				logger.warn("Failed to close watcher for {}", root, ioe);
+			}
+		}
+	}
+
+	private static Path normalize(Path path) {
+		return path.toAbsolutePath().normalize();
+	}
+
+	private Directory directory(Path path) {
+		if (path == null || !path.startsWith(root)) {
+			return null;
+		}
+		var directory = tree;
+		for (var segment : root.relativize(path)) {
+			var name = segment.toString();
+			if (name.isEmpty()) {
+				continue;
+			}
+			var children = directory.children;
+			if (children == null || (directory = children.get(name)) == null) {
+				return null;
+			}
+		}
+		return directory;
+	}
+
+	private Directory createDirectory(Path path) {
+		if (path == null || !path.startsWith(root)) {
+			return null;
+		}
+		var directory = tree;
+		for (var segment : root.relativize(path)) {
+			var name = segment.toString();
+			if (!name.isEmpty()) {
+				directory = directory.child(name);
+			}
+		}
+		return directory;
+	}
+
+	/**
+	 * Registers a directory with the watcher, giving up on consistency if the
+	 * platform won't watch any more directories.
+	 */
+	private void register(Path directory) {
+		if (watcher == null || !consistent) {
+			return;
+		}
+		try {
+			directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+		} catch (ClosedWatchServiceException ignored) {
+			// Already given up.
+		} catch (IOException ioe) {
+			logger.warn("Unable to watch {}, index of {} will be verified against disk", directory, root, ioe);
+			invalidate();
+		}
+	}
+
+	private void watch() {
+		try {
+			while (consistent) {
+				var key = watcher.take();
+				var directory = (Path) key.watchable();
+				for (var event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						logger.warn("Missed changes within {}, index will be verified against disk", root);
+						invalidate();
+						return;
+					}
+					var path = directory.resolve((Path) ((WatchEvent<?>) event).context());
+					if (path.startsWith(internal)) {
+						continue;
+					}
+					if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+						remove(path);
+					} else if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+						// Files may already exist by the time it's being watched.
+						new Walk(path, createDirectory(path)).invoke();
+					} else {
+						addFile(path);
+					}
+				}
+				if (!key.reset()) {
+					remove(directory);
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException ignored) {
+			// Shutting down or given up.
+		}
+	}
+
+	private static final class Directory {
+		private volatile ConcurrentMap<String, Directory> children;
+		private volatile String[] files = EMPTY;
+
+		Directory child(String name) {
+			var children = this.children;
+			if (children == null) {
+				synchronized (this) {
+					if ((children = this.children) == null) {
+						this.children = children = new ConcurrentHashMap<>();
+					}
+				}
+			}
+			return children.computeIfAbsent(name, $ -> new Directory());
+		}
+
+		boolean hasFile(String name) {
+			return Arrays.binarySearch(files, name) >= 0;
+		}
+
+		synchronized void addFile(String name) {
+			var files = this.files;
+			int i = Arrays.binarySearch(files, name);
+			if (i >= 0) {
+				return;
+			}
+			i = -i - 1;
+			var copy = new String[files.length + 1];
+			System.arraycopy(files, 0, copy, 0, i);
+			copy[i] = name;
+			System.arraycopy(files, i, copy, i + 1, files.length - i);
+			this.files = copy;
+		}
+
+		synchronized void removeFile(String name) {
+			var files = this.files;
+			int i = Arrays.binarySearch(files, name);
+			if (i < 0) {
+				return;
+			}
+			var copy = new String[files.length - 1];
+			System.arraycopy(files, 0, copy, 0, i);
+			System.arraycopy(files, i + 1, copy, i, copy.length - i);
+			this.files = copy;
+		}
+
+		synchronized void addFiles(ArrayList<String> names) {
+			var files = new ArrayList<>(Arrays.asList(this.files));
+			files.addAll(names);
+			this.files = files.stream().distinct().sorted().toArray(String[]::new);
+		}
+	}
+
+	/**
+	 * Walks a directory, forking for each subdirectory.
+	 */
+	private final class Walk extends RecursiveAction {
+		private final Path path;
+		private final Directory directory;
+
+		Walk(Path path, Directory directory) {
+			this.path = path;
+			this.directory = directory;
+		}
+
+		@Override
+		protected void compute() {
+			register(path);
+			var files = new ArrayList<String>();
+			var walks = new ArrayList<Walk>();
+			try (var stream = Files.newDirectoryStream(path)) {
+				for (var entry : stream) {
+					var name = entry.getFileName().toString();
+					// The server's own files are never served, and so never indexed.
+					if (entry.equals(internal)) {
+						continue;
+					}
+					var attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+					if (attributes.isDirectory()) {
+						walks.add(new Walk(entry, directory.child(name)));
+					} else {
+						files.add(name);
+					}
+				}
+			} catch (IOException ioe) {
+				logger.warn("Failed to index {}", path, ioe);
+				invalidate();
+				return;
+			}
+			directory.addFiles(files);
+			invokeAll(walks);
+		}
+	}
+}
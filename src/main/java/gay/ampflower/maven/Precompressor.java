@@ -0,0 +1,188 @@
+/* Copyright 2023 Ampflower
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package gay.ampflower.maven;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Generates gzip siblings of text files as they're published, such that the
+ * webserver may serve them precompressed rather than compressing on every
+ * read.
+ *
+ * @author Ampflower
+ * @since 0.1.0
+ */
+final class Precompressor {
+	private static final Logger logger = LoggerFactory.getLogger(Precompressor.class);
+	static final String SUFFIX = ".gz";
+	/**
+	 * Extensions of files worth compressing. Checksums are left out, as they're
+	 * too small to shrink.
+	 */
+	private static final Set<String> TEXT = Set.of("pom", "module", "xml", "json", "txt", "properties");
+	/**
+	 * Anything smaller gains nothing over gzip's own overhead.
+	 */
+	private static final long MIN_SIZE = 256;
+	/**
+	 * Anything larger isn't compressed, as the output is buffered in memory.
+	 */
+	private static final long MAX_SIZE = 16 * 1024 * 1024;
+	/**
+	 * Compresses in the background on threads of its own, as it blocks on the
+	 * disk. Anything beyond the queue is dropped, and merely served
+	 * uncompressed.
+	 */
+	private static final ThreadPoolExecutor background = background(2, 1024);
+
+	private final Repository repository;
+	private final Tuning.Precompress mode;
+
+	Precompressor(Repository repository, Tuning.Precompress mode) {
+		this.repository = repository;
+		this.mode = mode;
+	}
+
+	/**
+	 * @return true if the file should have a compressed sibling.
+	 */
+	private static ThreadPoolExecutor background(int threads, int queue) {
+		var counter = new AtomicInteger();
+		var executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(queue), task -> {
+					var thread = new Thread(task, "precompress-" + counter.getAndIncrement());
+					thread.setDaemon(true);
+					return thread;
+				}, new ThreadPoolExecutor.DiscardPolicy());
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	static boolean eligible(Path target, long size) {
+		return size >= MIN_SIZE && size <= MAX_SIZE && text(target);
+	}
+
+	/**
+	 * @return true if the file is of a text type.
+	 */
+	static boolean text(Path target) {
+		var name = target.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		return dot >= 0 && TEXT.contains(name.substring(dot + 1));
+	}
+
+	/**
+	 * @return The compressed sibling of the file.
+	 */
+	static Path sibling(Path target) {
+		return target.resolveSibling(target.getFileName() + SUFFIX);
+	}
+
+	/**
+	 * Compresses a file that's just been published, either now or in the
+	 * background.
+	 */
+	void compress(Path target) {
+		if (!text(target)) {
+			return;
+		}
+		if (mode == Tuning.Precompress.BACKGROUND) {
+			background.execute(() -> compressFile(target));
+		} else {
+			compressFile(target);
+		}
+	}
+
+	/**
+	 * Compresses a file generated in memory, always inline such that the sibling
+	 * is replaced along with the file.
+	 */
+	void compress(Path target, byte[] data) throws IOException {
+		if (!eligible(target, data.length)) {
+			return;
+		}
+		var out = new ByteArrayOutputStream(data.length / 4);
+		try (var gzip = gzip(out)) {
+			gzip.write(data);
+		}
+		repository.write(sibling(target), out.toByteArray());
+	}
+
+	/**
+	 * Compresses a published file, unless it's replaced in the meantime, such
+	 * that an older compression finishing last never leaves a stale sibling.
+	 * Whatever replaced it is compressed by its own publish.
+	 */
+	private void compressFile(Path target) {
+		try {
+			var read = Version.of(target);
+			if (!eligible(target, read.size)) {
+				return;
+			}
+			var out = new ByteArrayOutputStream();
+			try (var in = Files.newInputStream(target); var gzip = gzip(out)) {
+				in.transferTo(gzip);
+			}
+			if (!repository.publishSibling(target, sibling(target), out.toByteArray(),
+					() -> read.equals(Version.current(target)))) {
+				logger.debug("Skipped compressing {}, replaced in the meantime", target);
+			}
+		} catch (NoSuchFileException ignored) {
+			// Removed in the meantime.
+		} catch (IOException ioe) {
+			logger.warn("Failed to compress {}", target, ioe);
+		}
+	}
+
+	/**
+	 * Identifies the contents of a file well enough to tell it was replaced, as
+	 * publishing always moves a new file into place.
+	 */
+	private record Version(Object key, FileTime modified, long size) {
+		static Version of(Path file) throws IOException {
+			var attributes = Files.readAttributes(file, BasicFileAttributes.class);
+			return new Version(attributes.fileKey(), attributes.lastModifiedTime(), attributes.size());
+		}
+
+		/**
+		 * @return The file's version, or null if it can't be read, such as once
+		 *         removed.
+		 */
+		static Version current(Path file) {
+			try {
+				return of(file);
+			} catch (IOException ioe) {
+				return null;
+			}
+		}
+	}
+
+	private static GZIPOutputStream gzip(ByteArrayOutputStream out) throws IOException {
+		// Compressed once and read many times over, so the extra effort pays off.
+		return new GZIPOutputStream(out, 8192) {
+			{
+				def.setLevel(Deflater.BEST_COMPRESSION);
+			}
+		};
+	}
+}
@@ -0,0 +1,279 @@
+/* Copyright 2023 Ampflower
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package gay.ampflower.maven;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sun.misc.Signal;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Publishes the running {@link Snapshot} of the config, reloading it on
+ * {@code SIGHUP} or when its files change without restarting Jetty.
+ * <p>
+ * Requests read the snapshot through a single volatile reference. Reloads
+ * replace it whole, and only drop cached logins of the hosts and users that
+ * changed.
+ * <p>
+ * Only hosts, users, secrets, {@code [bandwidth]}, {@code [weights]},
+ * {@code [max_upload]}, {@code [retention]} and {@code [argon2]} are
+ * reloaded. The socket, {@code [server]}, listeners and hooks still require a
+ * restart.
+ *
+ * @author Ampflower
+ * @since 0.1.0
+ */
+final class Reloader {
+	private static final Logger logger = LoggerFactory.getLogger(Reloader.class);
+	/**
+	 * How long to wait for further changes before reloading, as files are
+	 * rewritten in place and editors may save more than once.
+	 */
+	private static final long SETTLE_MILLIS = 500;
+
+	private final Path store;
+	private final Set<Snapshot.Taint> tainted = ConcurrentHashMap.newKeySet();
+	private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+	private final AtomicBoolean queued = new AtomicBoolean();
+	private Config config;
+	private volatile Snapshot snapshot;
+
+	/**
+	 * @param config The config as read at startup.
+	 */
+	Reloader(Config config) {
+		this.store = config.store();
+		this.config = config;
+		this.snapshot = new Snapshot(config, tainted);
+	}
+
+	/**
+	 * @return The current snapshot, to be read once per request.
+	 */
+	Snapshot get() {
+		return snapshot;
+	}
+
+	/**
+	 * Runs the listener after every successful reload.
+	 */
+	void onReload(Runnable listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Reloads on {@code SIGHUP}, and on changes to the config's files if enabled.
+	 *
+	 * @param watch Whether to watch the config's files.
+	 */
+	synchronized void start(boolean watch) throws IOException {
+		try {
+			Signal.handle(new Signal("HUP"), $ -> schedule());
+		} catch (IllegalArgumentException iae) {
+			logger.warn("Unable to reload on SIGHUP", iae);
+		}
+		if (!watch) {
+			return;
+		}
+		var watcher = store.getFileSystem().newWatchService();
+		store.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		var names = new HashSet<Path>();
+		for (var file : config.files()) {
+			names.add(file.getFileName());
+		}
+		var thread = new Thread(() -> watch(watcher, names), "config watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void watch(WatchService watcher, Set<Path> names) {
+		try {
+			while (true) {
+				var key = watcher.take();
+				for (var event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW
+							|| names.contains((Path) ((WatchEvent<?>) event).context())) {
+						schedule();
+					}
+				}
+				if (!key.reset()) {
+					logger.warn("No longer watching {} for changes to the config", store);
+					return;
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException ignored) {
+			// Shutting down.
+		}
+	}
+
+	/**
+	 * Reloads shortly, once changes made in quick succession have settled.
+	 */
+	void schedule() {
+		if (queued.compareAndSet(false, true)) {
+			Utils.scheduler.schedule(() -> {
+				queued.set(false);
+				reload();
+			}, SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Reads the config again and publishes it, keeping the current snapshot if
+	 * it can't be read.
+	 *
+	 * @return true if reloaded.
+	 */
+	synchronized boolean reload() {
+		var next = new Config(store);
+		try {
+			if (!next.reread()) {
+				logger.warn("Config is missing from {}, keeping the current one", store);
+				return false;
+			}
+			// Creates the directories of any new hosts.
+			next.init();
+		} catch (IOException | RuntimeException e) {
+			logger.error("Failed to reload config, keeping the current one", e);
+			return false;
+		}
+		var previous = snapshot;
+		config = next;
+		// Taints are lifted once the user's password is changed.
+		tainted.removeIf(taint -> {
+			var host = next.hosts.get(taint.host());
+			return host == null || !taint.hash().equals(host.users.get(taint.user()));
+		});
+		snapshot = new Snapshot(next, tainted);
+		invalidate(previous, snapshot);
+		for (var listener : listeners) {
+			listener.run();
+		}
+		logger.info("Reloaded config with {} hosts", next.hosts.size());
+		return true;
+	}
+
+	/**
+	 * Replaces the user's hash with one at the current cost, unless it was
+	 * changed in the meantime, then reloads.
+	 *
+	 * @param host     The name of the host, null for the global configuration.
+	 * @param user     The user's name.
+	 * @param previous The hash the password was verified against.
+	 * @param hash     The hash to replace it with.
+	 * @return true if replaced.
+	 */
+	synchronized boolean rehash(String host, String user, String previous, String hash) {
+		// Read anew, such that edits not yet reloaded aren't overwritten.
+		var current = new Config(store);
+		try {
+			if (!current.reread()) {
+				return false;
+			}
+			var auth = current.hosts.get(host);
+			if (auth == null || !previous.equals(auth.users.get(user))) {
+				return false;
+			}
+			auth.users.put(user, hash);
+			current.writeUsers();
+		} catch (IOException | RuntimeException e) {
+			logger.warn("Failed to rehash {} for {}", user, host, e);
+			return false;
+		}
+		logger.info("Rehashed {} for {} at {}", user, host, current.cost());
+		return reload();
+	}
+
+	/**
+	 * Refuses the user until their password is changed, both on the host and
+	 * globally.
+	 *
+	 * @param host The host domain for the maven.
+	 * @param user The user's name.
+	 */
+	synchronized void taint(String host, String user) {
+		var current = snapshot;
+		var names = new ArrayList<String>();
+		for (var name : Arrays.asList(current.name(host), null)) {
+			var auth = current.hosts().get(name);
+			var hash = auth == null ? null : auth.users.get(user);
+			if (hash != null) {
+				tainted.add(new Snapshot.Taint(name, user, hash));
+				names.add(name);
+			}
+		}
+		snapshot = new Snapshot(config, tainted);
+		if (!names.isEmpty()) {
+			renew(names, user);
+		}
+	}
+
+	/**
+	 * Moves the user on to the next generation, such that their tokens stay
+	 * revoked even if the hash is restored by hand, then reloads.
+	 *
+	 * @param names The names of the hosts, null for the global configuration.
+	 * @param user  The user's name.
+	 */
+	private void renew(List<String> names, String user) {
+		// Read anew, such that edits not yet reloaded aren't overwritten.
+		var current = new Config(store);
+		try {
+			if (!current.reread()) {
+				return;
+			}
+			for (var name : names) {
+				var auth = current.hosts.get(name);
+				if (auth != null) {
+					auth.renew(user);
+				}
+			}
+			current.writeUsers();
+		} catch (IOException | RuntimeException e) {
+			logger.warn("Failed to renew {} for {}", user, names, e);
+			return;
+		}
+		reload();
+	}
+
+	/**
+	 * Drops cached logins for every host whose secret changed, and every user
+	 * whose hash changed or was removed.
+	 */
+	private static void invalidate(Snapshot previous, Snapshot current) {
+		for (var entry : previous.hosts().entrySet()) {
+			var name = entry.getKey();
+			var before = entry.getValue();
+			var after = current.hosts().get(name);
+			if (after == null || !Arrays.equals(before.secret, after.secret)) {
+				Passwd.invalidate(name, null);
+				continue;
+			}
+			for (var user : before.users.entrySet()) {
+				if (!Objects.equals(user.getValue(), after.users.get(user.getKey()))) {
+					Passwd.invalidate(name, user.getKey());
+				}
+			}
+		}
+	}
+}
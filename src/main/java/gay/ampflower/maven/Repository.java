@@ -0,0 +1,848 @@
+/* Copyright 2023 Ampflower
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package gay.ampflower.maven;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Runtime state of a host's repository, responsible for publishing staged
+ * uploads into it.
+ *
+ * @author Ampflower
+ * @since 0.1.0
+ */
+final class Repository {
+	private static final Logger logger = LoggerFactory.getLogger(Repository.class);
+	/**
+	 * Largest sidecar that will be read, enough for any supported digest with a
+	 * file name following it.
+	 */
+	static final int MAX_SIDECAR = 1024;
+	/**
+	 * How many locks paths are published under, a power of two.
+	 */
+	private static final int PUBLISH_STRIPES = 64;
+
+	private final Path root;
+	private final Path absolute;
+	private final Path staging;
+	/**
+	 * Checksums of recently published files, such that the sidecar uploads
+	 * following them can be answered without touching the disk.
+	 */
+	private final ConcurrentMap<Path, Checksums> recent = new ConcurrentHashMap<>();
+	private final PathIndex index;
+	/**
+	 * Artifact and version level metadata by directory, loaded on first use.
+	 */
+	private final ConcurrentMap<Path, Metadata> metadata = new ConcurrentHashMap<>();
+	private final Path sessionRoot;
+	private final long sessionTimeout;
+	private final ConcurrentMap<String, Session> sessions = new ConcurrentHashMap<>();
+	private final Blobs blobs;
+	private final Precompressor precompressor;
+	/**
+	 * Held from checking that files which can't be replaced don't yet exist
+	 * until they're moved into place, such that two uploads of the same path
+	 * can't both pass the check. Striped by path, such that uploads of other
+	 * paths publish in parallel.
+	 */
+	private final ReentrantLock[] publishing = new ReentrantLock[PUBLISH_STRIPES];
+	/**
+	 * Periodic upkeep, cancelled once closed.
+	 */
+	private final List<ScheduledFuture<?>> tasks = new ArrayList<>();
+
+	/**
+	 * @param host      The host the repository is for.
+	 * @param tuning    The {@code [server]} section of the config.
+	 * @param retention Which builds of snapshots to keep as currently
+	 *                  configured, or null to keep all.
+	 */
+	Repository(Config.Host host, Tuning tuning, Supplier<Retention> retention) {
+		this.root = host.path();
+		this.absolute = root.toAbsolutePath().normalize();
+		this.staging = host.staging();
+		this.sessionRoot = host.sessions();
+		this.sessionTimeout = tuning.sessionTimeout.toNanos();
+		Arrays.setAll(publishing, $ -> new ReentrantLock());
+		// Clients upload sidecars right after the file, anything later will be read
+		// from disk instead.
+		tasks.add(Utils.scheduler.scheduleWithFixedDelay(recent::clear, 1, 1, TimeUnit.MINUTES));
+		tasks.add(Utils.scheduler.scheduleWithFixedDelay(this::expireSessions, 1, 1, TimeUnit.MINUTES));
+		this.index = index(root, tuning.index);
+		if (tuning.dedup) {
+			this.blobs = new Blobs(host.blobs());
+			long sweep = tuning.dedupSweep.toNanos();
+			// Kept off the shared scheduler, as walking the store may take a while.
+			tasks.add(Utils.scheduler.scheduleWithFixedDelay(() -> ForkJoinPool.commonPool().execute(blobs::sweep),
+					sweep, sweep, TimeUnit.NANOSECONDS));
+		} else {
+			this.blobs = null;
+		}
+		this.precompressor = tuning.precompress == Tuning.Precompress.OFF ? null
+				: new Precompressor(this, tuning.precompress);
+		// Always scheduled, as retention may be configured by a later reload.
+		var collector = new SnapshotCollector(this, retention, tuning.retentionRate);
+		long interval = tuning.retentionInterval.toNanos();
+		tasks.add(Utils.scheduler.scheduleWithFixedDelay(collector::schedule, interval, interval,
+				TimeUnit.NANOSECONDS));
+	}
+
+	/**
+	 * Stops upkeep of the repository once its host is removed or moved, and
+	 * discards its open sessions.
+	 */
+	void close() {
+		for (var task : tasks) {
+			task.cancel(false);
+		}
+		if (index != null) {
+			index.close();
+		}
+		for (var session : sessions.values()) {
+			discard(session);
+		}
+	}
+
+	private static PathIndex index(Path root, Tuning.Index mode) {
+		if (mode == Tuning.Index.OFF) {
+			return null;
+		}
+		final PathIndex index;
+		try {
+			index = new PathIndex(root, mode == Tuning.Index.WATCH);
+		} catch (IOException ioe) {
+			logger.warn("Unable to watch {}, not indexing", root, ioe);
+			return null;
+		}
+		var thread = new Thread(index::build, "indexer " + root);
+		thread.setDaemon(true);
+		thread.start();
+		return index;
+	}
+
+	Path root() {
+		return root;
+	}
+
+	Path staging() {
+		return staging;
+	}
+
+	/**
+	 * @param target A path within the repository, either absolute or relative.
+	 * @return true if the file may be replaced once uploaded.
+	 */
+	static boolean mutable(String target) {
+		return target.contains("SNAPSHOT")
+				|| target.regionMatches(target.lastIndexOf('/') + 1, "maven-metadata", 0, 14);
+	}
+
+	/**
+	 * @return true if the path is either a file or a directory.
+	 */
+	boolean exists(Path path) {
+		var index = this.index;
+		if (index != null && index.authoritative()) {
+			return index.isFile(path) || index.isDirectory(path);
+		}
+		return Files.exists(path);
+	}
+
+	/**
+	 * @return true if the path exists, and is not a directory.
+	 */
+	boolean isFile(Path path) {
+		var index = this.index;
+		if (index != null && index.authoritative()) {
+			return index.isFile(path);
+		}
+		return Files.exists(path) && !Files.isDirectory(path);
+	}
+
+	/**
+	 * Creates a directory and its parents, unless already known to exist.
+	 */
+	void createDirectories(Path path) throws IOException {
+		var index = this.index;
+		if (index != null && index.authoritative() && index.isDirectory(path)) {
+			return;
+		}
+		Files.createDirectories(path);
+		if (index != null) {
+			index.addDirectory(path);
+		}
+	}
+
+	/**
+	 * Publishes a staged file, generating its checksum sidecars if it isn't a
+	 * sidecar itself.
+	 * <p>
+	 * The sidecars are published first, such that the file is never visible
+	 * without them.
+	 *
+	 * @param staged    The complete file within {@link #staging()}.
+	 * @param target    Where in the repository to publish the file to.
+	 * @param checksums The checksums of the staged file.
+	 * @throws FileAlreadyExistsException If the file can't be replaced and was
+	 *                                     published in the meantime.
+	 * @throws IOException                 If the file couldn't be published. The
+	 *                                     staged file is left to the caller to
+	 *                                     clean up.
+	 */
+	void publish(Path staged, Path target, Checksums checksums) throws IOException {
+		boolean primary = Checksum.of(target.getFileName().toString()) == null;
+		var sidecars = new ArrayList<Move>();
+		try {
+			// Written and flushed before locking, such that only renames wait on it.
+			if (primary) {
+				for (var checksum : Checksum.values) {
+					var data = checksums.hex(checksum).getBytes(StandardCharsets.US_ASCII);
+					sidecars.add(new Move(stage(data), sidecar(target, checksum)));
+				}
+				intern(staged, target, checksums);
+			}
+			var lock = lock(relative(target));
+			lock.lock();
+			try {
+				// Checked before the sidecars, as they'd replace those of the existing file.
+				if (!mutable(relative(target).toString()) && Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+					throw new FileAlreadyExistsException(target.toString());
+				}
+				for (var iterator = sidecars.iterator(); iterator.hasNext();) {
+					var sidecar = iterator.next();
+					Files.move(sidecar.from(), sidecar.to(), StandardCopyOption.ATOMIC_MOVE);
+					iterator.remove();
+					if (index != null) {
+						index.addFile(sidecar.to());
+					}
+				}
+				if (primary) {
+					dropCompressed(target);
+				}
+				move(staged, target);
+				if (index != null) {
+					index.addFile(target);
+				}
+			} finally {
+				lock.unlock();
+			}
+		} finally {
+			for (var sidecar : sidecars) {
+				try {
+					Files.deleteIfExists(sidecar.from());
+				} catch (IOException ioe) {
+					logger.warn("Failed to clean up {}", sidecar.from(), ioe);
+				}
+			}
+		}
+		recent.put(target, checksums);
+		if (primary) {
+			updateMetadata(target);
+			if (precompressor != null) {
+				precompressor.compress(target);
+			}
+		}
+	}
+
+	/**
+	 * @param relative A path relative to the repository.
+	 * @return The lock held while publishing to the path.
+	 */
+	private ReentrantLock lock(Path relative) {
+		return publishing[stripe(relative)];
+	}
+
+	private static int stripe(Path relative) {
+		int hash = relative.toString().hashCode();
+		return (hash ^ hash >>> 16) & (PUBLISH_STRIPES - 1);
+	}
+
+	/**
+	 * Moves a file into the repository, replacing what's there only if it may
+	 * be replaced.
+	 * <p>
+	 * Anything else is moved without {@link StandardCopyOption#ATOMIC_MOVE}, as
+	 * that silently replaces on most platforms. It's still a single rename
+	 * within the same file system.
+	 *
+	 * @throws FileAlreadyExistsException If the target can't be replaced and
+	 *                                    exists.
+	 */
+	private void move(Path from, Path to) throws IOException {
+		if (mutable(relative(to).toString()) && !Files.isDirectory(from, LinkOption.NOFOLLOW_LINKS)) {
+			Files.move(from, to, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} else {
+			Files.move(from, to);
+		}
+	}
+
+	/**
+	 * Publishes a file derived from another, such as its compressed sibling,
+	 * unless the other was replaced since.
+	 *
+	 * @param target  The file it's derived from.
+	 * @param sibling Where in the repository to publish the file to.
+	 * @param data    The contents of the file.
+	 * @param current Whether the target is still what the file was derived
+	 *                from, checked while no publish of it may intervene.
+	 * @return false if not published, as the target was replaced.
+	 */
+	boolean publishSibling(Path target, Path sibling, byte[] data, BooleanSupplier current) throws IOException {
+		// Written and flushed before locking, such that only the rename waits on it.
+		var temp = stage(data);
+		var lock = lock(relative(target));
+		lock.lock();
+		try {
+			if (!current.getAsBoolean()) {
+				return false;
+			}
+			Files.move(temp, sibling, StandardCopyOption.ATOMIC_MOVE);
+			if (index != null) {
+				index.addFile(sibling);
+			}
+			return true;
+		} finally {
+			lock.unlock();
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * Publishes a file generated by the server along with its sidecars.
+	 *
+	 * @param target Where in the repository to publish the file to.
+	 * @param data   The contents of the file.
+	 */
+	void publish(Path target, byte[] data) throws IOException {
+		var checksums = Checksums.of(data);
+		writeSidecars(target, checksums);
+		if (precompressor != null) {
+			precompressor.compress(target, data);
+		}
+		write(target, data);
+		recent.put(target, checksums);
+	}
+
+	private void writeSidecars(Path target, Checksums checksums) throws IOException {
+		for (var checksum : Checksum.values) {
+			write(sidecar(target, checksum), checksums.hex(checksum).getBytes(StandardCharsets.US_ASCII));
+		}
+	}
+
+	/**
+	 * Removes the compressed sibling of a file about to be replaced, such that
+	 * it's never served stale. The webserver falls back to the file itself until
+	 * it's compressed again.
+	 */
+	private void dropCompressed(Path target) throws IOException {
+		if (precompressor == null) {
+			return;
+		}
+		var compressed = Precompressor.sibling(target);
+		if (isFile(compressed)) {
+			Files.deleteIfExists(compressed);
+			if (index != null) {
+				index.remove(compressed);
+			}
+		}
+	}
+
+	/**
+	 * Deletes a file from the repository.
+	 */
+	void delete(Path file) throws IOException {
+		Files.deleteIfExists(file);
+		if (index != null) {
+			index.remove(file);
+		}
+		recent.remove(file);
+	}
+
+	/**
+	 * Removes builds of a snapshot from its metadata, rewriting it if changed.
+	 *
+	 * @param directory The version directory of the snapshot.
+	 * @param values    The versions of the builds removed.
+	 */
+	void removeSnapshots(Path directory, String groupId, String artifactId, String version, Set<String> values)
+			throws IOException {
+		var model = metadata(directory, groupId, artifactId, version);
+		synchronized (model) {
+			if (model.removeSnapshots(values)) {
+				publish(directory.resolve(Metadata.FILE), model.render());
+			}
+		}
+	}
+
+	/**
+	 * Deduplicates a staged file against the blob store, if enabled.
+	 * <p>
+	 * Metadata is rewritten in place and never shared, so it's left alone.
+	 */
+	private void intern(Path staged, Path target, Checksums checksums) {
+		if (blobs != null && !target.getFileName().toString().equals(Metadata.FILE)) {
+			blobs.intern(staged, checksums.get(Checksum.SHA256));
+		}
+	}
+
+	/**
+	 * Merges metadata uploaded by a client into the server's own.
+	 *
+	 * @param target   The path the client uploaded the metadata to.
+	 * @param uploaded The metadata uploaded, or null if not understood.
+	 * @return false if the metadata isn't managed by the server, such as a group's
+	 *         plugin listing, or is misplaced, and should be stored as-is.
+	 */
+	boolean mergeMetadata(Path target, Metadata uploaded) throws IOException {
+		if (uploaded == null) {
+			return false;
+		}
+		var directory = target.getParent();
+		var expected = Path.of(uploaded.groupId.replace('.', '/'), uploaded.artifactId);
+		if (uploaded.version != null) {
+			expected = expected.resolve(uploaded.version);
+		}
+		if (!relative(directory).equals(expected)) {
+			return false;
+		}
+		var model = metadata(directory, uploaded.groupId, uploaded.artifactId, uploaded.version);
+		synchronized (model) {
+			if (model.merge(uploaded) || !exists(target)) {
+				publish(target, model.render());
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Merges a newly published file into the metadata of its artifact, and of its
+	 * version if a snapshot.
+	 */
+	private void updateMetadata(Path target) {
+		var coordinates = Metadata.Coordinates.of(relative(target));
+		if (coordinates == null) {
+			return;
+		}
+		var versionDirectory = target.getParent();
+		var artifactDirectory = versionDirectory.getParent();
+		try {
+			var artifact = metadata(artifactDirectory, coordinates.groupId(), coordinates.artifactId(), null);
+			synchronized (artifact) {
+				if (artifact.addVersion(coordinates.version())) {
+					publish(artifactDirectory.resolve(Metadata.FILE), artifact.render());
+				}
+			}
+			if (Metadata.isSnapshot(coordinates.version())) {
+				var snapshot = metadata(versionDirectory, coordinates.groupId(), coordinates.artifactId(),
+						coordinates.version());
+				synchronized (snapshot) {
+					if (snapshot.addSnapshot(coordinates.file())) {
+						publish(versionDirectory.resolve(Metadata.FILE), snapshot.render());
+					}
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			logger.warn("Failed to update metadata for {}", target, e);
+		}
+	}
+
+	/**
+	 * Gets the metadata for a directory, loading it from disk on first use.
+	 */
+	private Metadata metadata(Path directory, String groupId, String artifactId, String version) throws IOException {
+		var key = directory.toAbsolutePath().normalize();
+		var model = metadata.get(key);
+		if (model != null) {
+			return model;
+		}
+		var file = directory.resolve(Metadata.FILE);
+		if (isFile(file)) {
+			try {
+				model = Metadata.parse(Files.readAllBytes(file));
+			} catch (IOException ioe) {
+				logger.warn("Replacing unreadable metadata {}", file, ioe);
+			}
+		}
+		if (model == null || !model.groupId.equals(groupId) || !model.artifactId.equals(artifactId)
+				|| !Objects.equals(model.version, version)) {
+			model = new Metadata(groupId, artifactId, version);
+		}
+		var existing = metadata.putIfAbsent(key, model);
+		return existing == null ? model : existing;
+	}
+
+	/**
+	 * Opens a deploy session, or returns the one already open by that ID.
+	 *
+	 * @param id    The client's name for the session.
+	 * @param owner The user opening the session.
+	 */
+	Session openSession(String id, String owner) {
+		return sessions.computeIfAbsent(id, $ -> new Session(this, id, owner,
+				sessionRoot.resolve(id + '-' + Long.toUnsignedString(ThreadLocalRandom.current().nextLong(), 36)),
+				sessionTimeout));
+	}
+
+	/**
+	 * @return The open session by that ID, if any.
+	 */
+	Session session(String id) {
+		return sessions.get(id);
+	}
+
+	/**
+	 * Commits a session into the repository.
+	 * <p>
+	 * Everything staged is flushed to disk in one batch, then whatever the
+	 * session added to the repository is moved into place a directory at a
+	 * time. A deploy publishing a new version is thereby made visible by a
+	 * single rename.
+	 * <p>
+	 * Conflicts are checked for and the tree moved in while holding the lock
+	 * {@link #publish(Path, Path, Checksums)} holds for every path the session
+	 * publishes, taken in order to never deadlock. Should a file still
+	 * appear in the meantime, such as by something other than this server,
+	 * whatever was moved in already is moved back out. Files that may be
+	 * replaced stay replaced.
+	 *
+	 * @param session The session to commit.
+	 * @return Files that cannot be replaced as they already exist, in which case
+	 *         the session is discarded without publishing anything; or null if
+	 *         the session was already closed.
+	 */
+	List<Path> commit(Session session) throws IOException {
+		var files = session.close();
+		if (files == null) {
+			return null;
+		}
+		sessions.remove(session.id, session);
+		var tree = session.tree();
+		try {
+			// Metadata is merged into the server's own rather than moved into place.
+			var uploadedMetadata = new TreeMap<Path, byte[]>();
+			for (var relative : files.keySet()) {
+				var name = relative.getFileName().toString();
+				var file = tree.resolve(relative.toString());
+				if (name.equals(Metadata.FILE)) {
+					uploadedMetadata.put(relative, Files.readAllBytes(file));
+					Files.delete(file);
+				} else if (Checksum.of(name) == null) {
+					var checksums = files.get(relative);
+					for (var checksum : Checksum.values) {
+						Files.write(sidecar(file, checksum),
+								checksums.hex(checksum).getBytes(StandardCharsets.US_ASCII));
+					}
+					intern(file, relative, checksums);
+				}
+			}
+
+			// One batch of flushes, rather than one per upload.
+			try (var walk = Files.walk(tree)) {
+				for (var iterator = walk.iterator(); iterator.hasNext();) {
+					Utils.force(iterator.next());
+				}
+			}
+
+			var published = new TreeMap<>(files);
+			published.keySet().removeAll(uploadedMetadata.keySet());
+			var touched = new LinkedHashSet<Path>();
+			var stripes = new TreeSet<Integer>();
+			for (var relative : files.keySet()) {
+				stripes.add(stripe(relative));
+			}
+			for (var stripe : stripes) {
+				publishing[stripe].lock();
+			}
+			try {
+				var conflicts = new ArrayList<Path>();
+				for (var relative : files.keySet()) {
+					if (!mutable(relative.toString()) && exists(root.resolve(relative.toString()))) {
+						conflicts.add(relative);
+					}
+				}
+				if (!conflicts.isEmpty()) {
+					Collections.sort(conflicts);
+					logger.info("Discarding {}, conflicts with {}", session, conflicts);
+					return conflicts;
+				}
+
+				for (var relative : published.keySet()) {
+					if (Checksum.of(relative.getFileName().toString()) == null) {
+						dropCompressed(root.resolve(relative.toString()));
+					}
+				}
+				var moved = new ArrayList<Move>();
+				try {
+					merge(tree, root, touched, moved);
+				} catch (FileAlreadyExistsException faee) {
+					rollback(moved);
+					var conflict = relative(Path.of(faee.getFile()));
+					logger.warn("Discarding {}, {} appeared while committing", session, conflict);
+					return List.of(conflict);
+				}
+
+				if (index != null) {
+					for (var relative : published.keySet()) {
+						var target = root.resolve(relative.toString());
+						index.addFile(target);
+						if (Checksum.of(target.getFileName().toString()) == null) {
+							for (var checksum : Checksum.values) {
+								index.addFile(sidecar(target, checksum));
+							}
+						}
+					}
+				}
+			} finally {
+				for (var stripe : stripes.descendingSet()) {
+					publishing[stripe].unlock();
+				}
+			}
+			for (var directory : touched) {
+				Utils.force(directory);
+			}
+
+			for (var entry : published.entrySet()) {
+				var target = root.resolve(entry.getKey().toString());
+				boolean primary = Checksum.of(target.getFileName().toString()) == null;
+				recent.put(target, entry.getValue());
+				if (primary) {
+					updateMetadata(target);
+					if (precompressor != null) {
+						precompressor.compress(target);
+					}
+				}
+			}
+
+			for (var entry : uploadedMetadata.entrySet()) {
+				var target = root.resolve(entry.getKey().toString());
+				Metadata uploaded;
+				try {
+					uploaded = Metadata.parse(entry.getValue());
+				} catch (IOException ioe) {
+					uploaded = null;
+				}
+				if (!mergeMetadata(target, uploaded)) {
+					publish(target, entry.getValue());
+				}
+			}
+
+			logger.info("Committed {}, {} files", session, files.size());
+			return List.of();
+		} finally {
+			deleteTree(tree);
+		}
+	}
+
+	/**
+	 * Moves a staged tree into the repository, moving whole directories where
+	 * they don't yet exist.
+	 *
+	 * @param from    The staged directory.
+	 * @param to      The directory within the repository it mirrors.
+	 * @param touched Collects the directories that were moved into.
+	 * @param moved   Collects what was moved, in order.
+	 * @throws FileAlreadyExistsException If a file that can't be replaced exists.
+	 */
+	private void merge(Path from, Path to, Set<Path> touched, List<Move> moved) throws IOException {
+		var entries = new ArrayList<Path>();
+		try (var stream = Files.newDirectoryStream(from)) {
+			stream.forEach(entries::add);
+		}
+		// Sidecars first, such that a file is never visible without them.
+		entries.sort(Comparator.comparing((Path entry) -> Checksum.of(entry.getFileName().toString()) == null));
+		for (var entry : entries) {
+			var target = to.resolve(entry.getFileName().toString());
+			if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS) && Files.isDirectory(target)) {
+				merge(entry, target, touched, moved);
+			} else {
+				move(entry, target);
+				moved.add(new Move(entry, target));
+				touched.add(to);
+			}
+		}
+	}
+
+	/**
+	 * Moves what a failed commit moved into the repository back out, newest
+	 * first.
+	 */
+	private static void rollback(List<Move> moved) {
+		for (int i = moved.size() - 1; i >= 0; i--) {
+			var move = moved.get(i);
+			try {
+				Files.move(move.to(), move.from());
+			} catch (IOException ioe) {
+				logger.error("Failed to roll back {}", move.to(), ioe);
+			}
+		}
+	}
+
+	/**
+	 * Discards a session without publishing anything.
+	 *
+	 * @return false if the session was already closed.
+	 */
+	boolean discard(Session session) {
+		if (session.close() == null) {
+			return false;
+		}
+		sessions.remove(session.id, session);
+		deleteTree(session.tree());
+		return true;
+	}
+
+	private void expireSessions() {
+		long now = System.nanoTime();
+		for (var session : sessions.values()) {
+			if (session.expired(now) && discard(session)) {
+				logger.info("Discarded idle {}", session);
+			}
+		}
+	}
+
+	private static void deleteTree(Path tree) {
+		try {
+			Utils.deleteRecursively(tree);
+		} catch (IOException | RuntimeException e) {
+			logger.warn("Failed to clean up {}", tree, e);
+		}
+	}
+
+	/**
+	 * @return The path relative to the root of the repository.
+	 */
+	Path relative(Path path) {
+		return absolute.relativize(path.toAbsolutePath().normalize());
+	}
+
+	/**
+	 * Determines what a sidecar upload is expected to contain.
+	 *
+	 * @param sidecar  The sidecar being uploaded.
+	 * @param checksum The checksum the sidecar is for.
+	 * @return The lowercase hex digest, or null if the file the sidecar is for
+	 *         wasn't published by this server.
+	 */
+	String expected(Path sidecar, Checksum checksum) throws IOException {
+		var name = sidecar.getFileName().toString();
+		var file = sidecar.resolveSibling(name.substring(0, name.length() - checksum.suffix().length()));
+		var checksums = recent.get(file);
+		if (checksums != null) {
+			return checksums.hex(checksum);
+		}
+		if (!Files.isRegularFile(sidecar) || Files.size(sidecar) > MAX_SIDECAR) {
+			return null;
+		}
+		return parse(Files.readAllBytes(sidecar));
+	}
+
+	/**
+	 * Extracts the digest from a sidecar, ignoring any file name following it.
+	 *
+	 * @return The lowercase hex digest.
+	 */
+	static String parse(byte[] sidecar) {
+		var text = new String(sidecar, StandardCharsets.US_ASCII).strip();
+		int end = 0;
+		while (end < text.length() && !Character.isWhitespace(text.charAt(end))) {
+			end++;
+		}
+		return text.substring(0, end).toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Atomically writes a small file generated by the server.
+	 *
+	 * @param target Where in the repository to publish the file to.
+	 * @param data   The contents of the file.
+	 */
+	void write(Path target, byte[] data) throws IOException {
+		var temp = stage(data);
+		try {
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+			if (index != null) {
+				index.addFile(target);
+			}
+		} catch (IOException | RuntimeException e) {
+			try {
+				Files.deleteIfExists(temp);
+			} catch (IOException suppressed) {
+				e.addSuppressed(suppressed);
+			}
+			throw e;
+		}
+		logger.debug("wrote {}", target);
+	}
+
+	/**
+	 * Writes and flushes data to a new file within {@link #staging()}.
+	 *
+	 * @return The staged file, to be moved into place.
+	 */
+	private Path stage(byte[] data) throws IOException {
+		var temp = Utils.createStagingFile(staging);
+		try (var channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+			var buffer = ByteBuffer.wrap(data);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(false);
+		} catch (IOException | RuntimeException e) {
+			try {
+				Files.deleteIfExists(temp);
+			} catch (IOException suppressed) {
+				e.addSuppressed(suppressed);
+			}
+			throw e;
+		}
+		return temp;
+	}
+
+	static Path sidecar(Path file, Checksum checksum) {
+		return file.resolveSibling(file.getFileName() + checksum.suffix());
+	}
+
+	/**
+	 * A file or directory moved into the repository.
+	 */
+	private record Move(Path from, Path to) {
+	}
+}
@@ -0,0 +1,60 @@
+/* Copyright 2023 Ampflower
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package gay.ampflower.maven;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * How many builds of a snapshot to keep, written as a comma separated count
+ * of builds and age, such as {@code 10, 30d}.
+ * <p>
+ * A build is kept if it's within either bound, and the newest build is
+ * always kept such that the snapshot still resolves.
+ *
+ * @param builds How many of the newest builds to keep, or -1 for no bound.
+ * @param age    How old a build may be before it's removed, or null for no
+ *               bound.
+ * @author Ampflower
+ * @since 0.1.0
+ */
+record Retention(int builds, Duration age) {
+
+	/**
+	 * @throws IllegalArgumentException If the value is malformed or empty.
+	 */
+	static Retention parse(String value) {
+		int builds = -1;
+		Duration age = null;
+		for (var token : value.split(",")) {
+			token = token.strip();
+			if (token.isEmpty()) {
+				continue;
+			}
+			// Ages must carry a unit, else they'd read as a count.
+			if (token.chars().allMatch(Character::isDigit)) {
+				builds = Integer.parseInt(token);
+			} else {
+				age = Utils.parseDuration(token);
+			}
+		}
+		if (builds < 0 && age == null) {
+			throw new IllegalArgumentException("No retention given: " + value);
+		}
+		return new Retention(builds, age);
+	}
+
+	/**
+	 * @param rank  How many builds are newer than this one.
+	 * @param built When the build was deployed.
+	 * @param now   The current time.
+	 * @return true if the build is to be kept.
+	 */
+	boolean keep(int rank, Instant built, Instant now) {
+		return rank == 0 || rank < builds || (age != null && built.plus(age).isAfter(now));
+	}
+}
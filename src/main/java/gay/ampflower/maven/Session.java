@@ -0,0 +1,173 @@
+/* Copyright 2023 Ampflower
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package gay.ampflower.maven;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * A deploy staged as a whole, invisible until committed.
+ * <p>
+ * Files are staged into a tree mirroring the repository, such that whatever
+ * the deploy adds can be moved into place a directory at a time once the
+ * session is committed.
+ *
+ * @author Ampflower
+ * @since 0.1.0
+ */
+final class Session {
+	private static final Pattern ID = Pattern.compile("[A-Za-z0-9_-][A-Za-z0-9._-]{0,63}");
+
+	final String id;
+	final String owner;
+	private final Repository repository;
+	private final Path tree;
+	private final long timeout;
+	/**
+	 * Staged files relative to the repository, and their checksums.
+	 */
+	private final Map<Path, Checksums> staged = new HashMap<>();
+	private long deadline;
+	private boolean closed;
+
+	/**
+	 * @param repository The repository the session will be committed into.
+	 * @param id         The client's name for the session.
+	 * @param owner      The user who opened the session.
+	 * @param tree       Where to stage the files of the session.
+	 * @param timeout    How long, in nanoseconds, the session may be idle before
+	 *                   it's discarded.
+	 */
+	Session(Repository repository, String id, String owner, Path tree, long timeout) {
+		this.repository = repository;
+		this.id = id;
+		this.owner = owner;
+		this.tree = tree;
+		this.timeout = timeout;
+		this.deadline = System.nanoTime() + timeout;
+	}
+
+	/**
+	 * @return true if the ID is safe to use as a directory name.
+	 */
+	static boolean valid(String id) {
+		return id != null && ID.matcher(id).matches();
+	}
+
+	Path tree() {
+		return tree;
+	}
+
+	/**
+	 * @param target A path within the repository.
+	 * @return true if the path was staged by this session.
+	 */
+	synchronized boolean contains(Path target) {
+		return staged.containsKey(repository.relative(target));
+	}
+
+	/**
+	 * @param sidecar  The sidecar within the repository.
+	 * @param checksum The checksum the sidecar holds.
+	 * @return The lowercase hex digest of the file the sidecar is for, if staged
+	 *         by this session.
+	 */
+	synchronized String expected(Path sidecar, Checksum checksum) {
+		var name = sidecar.getFileName().toString();
+		var base = sidecar.resolveSibling(name.substring(0, name.length() - checksum.suffix().length()));
+		var checksums = staged.get(repository.relative(base));
+		return checksums == null ? null : checksums.hex(checksum);
+	}
+
+	/**
+	 * @return The files staged, relative to the repository, and their checksums.
+	 */
+	synchronized Map<Path, Checksums> files() {
+		return Map.copyOf(staged);
+	}
+
+	/**
+	 * Moves a complete file into the session.
+	 * <p>
+	 * The file isn't flushed to disk, that's left to the commit to do in one go.
+	 *
+	 * @param temp      The complete file within staging.
+	 * @param target    Where in the repository the file will be published to.
+	 * @param checksums The checksums of the file.
+	 * @throws IOException If the session is already closed, or the file couldn't
+	 *                     be moved. The file is left to the caller to clean up.
+	 */
+	void stage(Path temp, Path target, Checksums checksums) throws IOException {
+		var relative = repository.relative(target);
+		var destination = tree.resolve(relative.toString());
+		synchronized (this) {
+			if (closed) {
+				throw new IOException("Session " + id + " is already closed");
+			}
+			Files.createDirectories(destination.getParent());
+			Files.move(temp, destination, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			staged.put(relative, checksums);
+			deadline = System.nanoTime() + timeout;
+		}
+	}
+
+	/**
+	 * Stages a file generated in memory.
+	 */
+	void stage(Path target, byte[] data) throws IOException {
+		var temp = Utils.createStagingFile(repository.staging());
+		try {
+			Files.write(temp, data);
+			stage(temp, target, Checksums.of(data));
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+	}
+
+	/**
+	 * Keeps the session alive.
+	 *
+	 * @return false if the session is already closed.
+	 */
+	synchronized boolean touch() {
+		deadline = System.nanoTime() + timeout;
+		return !closed;
+	}
+
+	/**
+	 * @param now The current {@link System#nanoTime()}.
+	 * @return true if the session has been idle for too long.
+	 */
+	synchronized boolean expired(long now) {
+		return now - deadline > 0;
+	}
+
+	/**
+	 * Closes the session to further uploads.
+	 *
+	 * @return The files staged, relative to the repository, or null if the
+	 *         session was already closed.
+	 */
+	synchronized Map<Path, Checksums> close() {
+		if (closed) {
+			return null;
+		}
+		closed = true;
+		return Map.copyOf(staged);
+	}
+
+	@Override
+	public String toString() {
+		return "Session{" + "id=" + id + ", owner=" + owner + ", tree=" + tree + '}';
+	}
+}
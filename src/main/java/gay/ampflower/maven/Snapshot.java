@@ -0,0 +1,202 @@
+/* Copyright 2023 Ampflower
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package gay.ampflower.maven;
+
+import org.bouncycastle.util.Arrays;
+
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Immutable view of the parts of {@link Config} that may change while the
+ * server is running, such that requests may read it without locking.
+ * <p>
+ * A new snapshot is taken whenever the config is reloaded, see
+ * {@link Reloader}.
+ *
+ * @author Ampflower
+ * @since 0.1.0
+ */
+final class Snapshot {
+	private static final long DEFAULT_MAX_UPLOAD = 24 * 1024 * 1024;
+
+	private final Map<String, Config.Host> hosts;
+	private final Map<String, String> bandwidth;
+	private final Map<String, String> weights;
+	private final Map<String, String> maxUpload;
+	private final Map<String, String> retention;
+	private final Argon2.Cost cost;
+
+	/**
+	 * @param config  The config to take a snapshot of.
+	 * @param tainted Users to leave out, until their hash changes.
+	 */
+	Snapshot(Config config, Set<Taint> tainted) {
+		var hosts = new HashMap<String, Config.Host>();
+		for (var entry : config.hosts.entrySet()) {
+			var key = entry.getKey();
+			var host = entry.getValue();
+			var users = new HashMap<>(host.users);
+			users.entrySet().removeIf(user -> tainted.contains(new Taint(key, user.getKey(), user.getValue())));
+			hosts.put(key, new Config.Host(host.path, host.secret.clone(), Collections.unmodifiableMap(users),
+					Map.copyOf(host.generations)));
+		}
+		this.hosts = Collections.unmodifiableMap(hosts);
+		this.bandwidth = Map.copyOf(config.bandwidth);
+		this.weights = Map.copyOf(config.weights);
+		this.maxUpload = Map.copyOf(config.maxUpload);
+		this.retention = Map.copyOf(config.retention);
+		this.cost = config.cost();
+	}
+
+	/**
+	 * @param host The host domain for the maven.
+	 * @return The name the host is configured under, null for the global
+	 *         configuration.
+	 */
+	String name(String host) {
+		return host != null && hosts.containsKey(host) ? host : null;
+	}
+
+	/**
+	 * @param host The host domain for the maven.
+	 * @return The configuration for the domain, falling back to the global
+	 *         configuration if there's none specific to the domain.
+	 */
+	Config.Host host(String host) {
+		var auth = hosts.get(host);
+		if (auth != null) {
+			return auth;
+		}
+		return hosts.get(null);
+	}
+
+	/**
+	 * @return Every configured host, keyed by name with null as the global
+	 *         configuration.
+	 */
+	Map<String, Config.Host> hosts() {
+		return hosts;
+	}
+
+	/**
+	 * @param user The user uploading.
+	 * @return The user's upload bandwidth in bytes per second, or 0 if unlimited.
+	 */
+	long bandwidth(String user) {
+		var value = bandwidth.get(user);
+		if (value == null) {
+			value = bandwidth.get("*");
+		}
+		return value == null ? 0 : Utils.parseSize(value);
+	}
+
+	/**
+	 * @param host The host domain for the maven.
+	 * @return The host's share of upload slots relative to other hosts.
+	 */
+	int weight(String host) {
+		var value = weights.get(Objects.requireNonNullElse(host, "*"));
+		return value == null ? 1 : Math.max(1, Integer.parseUnsignedInt(value.strip()));
+	}
+
+	/**
+	 * @param host The host domain for the maven.
+	 * @return The largest upload the host accepts, in bytes.
+	 */
+	long maxUpload(String host) {
+		var value = host == null ? null : maxUpload.get(host);
+		if (value == null) {
+			value = maxUpload.get("*");
+		}
+		return value == null ? DEFAULT_MAX_UPLOAD : Utils.parseSize(value);
+	}
+
+	/**
+	 * @param host The host domain for the maven.
+	 * @return Which builds of snapshots the host keeps, or null to keep all.
+	 */
+	Retention retention(String host) {
+		var value = host == null ? null : retention.get(host);
+		if (value == null) {
+			value = retention.get("*");
+		}
+		return value == null ? null : Retention.parse(value);
+	}
+
+	/**
+	 * @return The cost password hashes are to be at, older hashes are rehashed
+	 *         on login.
+	 */
+	Argon2.Cost cost() {
+		return cost;
+	}
+
+	boolean authorized(String host, String user, byte[] password) {
+		var auth = host(host);
+		if (auth == null) {
+			return false;
+		}
+		var hash = auth.users.get(user);
+		if (hash == null) {
+			return false;
+		}
+		return Passwd.verify(hash, password, auth.secret);
+	}
+
+	Sha256Hash authHashKey(String host, String user, byte[] password, byte[] nonce) {
+		var auth = host(host);
+		if (auth == null) {
+			return null;
+		}
+
+		var hash = auth.users.get(user);
+		if (hash == null) {
+			return null;
+		}
+
+		try {
+			final var key = new SecretKeySpec(auth.secret, "RAW");
+			final var mac = Mac.getInstance("HmacSHA256");
+			mac.init(key);
+			var a = host.getBytes(StandardCharsets.UTF_8);
+			var b = user.getBytes(StandardCharsets.UTF_8);
+			var c = hash.getBytes(StandardCharsets.UTF_8);
+			mac.update(password);
+			mac.update(a);
+			mac.update(b);
+			mac.update(c);
+			mac.update(nonce);
+			var d = mac.doFinal();
+			Arrays.clear(a);
+			Arrays.clear(b);
+			Arrays.clear(c);
+			return new Sha256Hash(d);
+		} catch (NoSuchAlgorithmException | InvalidKeyException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * A user whose password was sent in the clear, refused until it's changed.
+	 *
+	 * @param host The name of the host, null for the global configuration.
+	 * @param user The user's name.
+	 * @param hash The user's hash at the time.
+	 */
+	record Taint(String host, String user, String hash) {
+	}
+}
@@ -0,0 +1,209 @@
+/* Copyright 2023 Ampflower
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package gay.ampflower.maven;
+
+import gay.ampflower.maven.concurrent.Throttle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * Removes old builds of snapshots according to a host's {@link Retention},
+ * updating the snapshot's metadata to match.
+ * <p>
+ * Every repository shares a single background thread, and deletions are
+ * paced such that collecting doesn't starve uploads of I/O.
+ *
+ * @author Ampflower
+ * @since 0.1.0
+ */
+final class SnapshotCollector {
+	private static final Logger logger = LoggerFactory.getLogger(SnapshotCollector.class);
+	private static final Pattern TIMESTAMP = Pattern.compile("(\\d{8}\\.\\d{6})-(\\d+)");
+	private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd.HHmmss");
+	private static final String SNAPSHOT = "SNAPSHOT";
+
+	private static final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+		var thread = new Thread(runnable, "snapshot collector");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		return thread;
+	});
+
+	private final Repository repository;
+	private final Supplier<Retention> retention;
+	private final Throttle throttle;
+	private final AtomicBoolean queued = new AtomicBoolean();
+
+	/**
+	 * @param repository The repository to collect.
+	 * @param retention  Which builds to keep as currently configured, or null to
+	 *                   keep all.
+	 * @param rate       How many files may be deleted per second, or 0 for no
+	 *                   limit.
+	 */
+	SnapshotCollector(Repository repository, Supplier<Retention> retention, long rate) {
+		this.repository = repository;
+		this.retention = retention;
+		this.throttle = rate > 0 ? new Throttle(rate, rate) : null;
+	}
+
+	/**
+	 * Queues a collection on the collector thread, unless one already is or
+	 * everything is kept.
+	 */
+	void schedule() {
+		if (retention.get() != null && queued.compareAndSet(false, true)) {
+			executor.execute(this::collect);
+		}
+	}
+
+	private void collect() {
+		queued.set(false);
+		// Read once, such that a reload never changes it midway through.
+		var retention = this.retention.get();
+		if (retention == null) {
+			return;
+		}
+		long start = System.nanoTime();
+		try {
+			int removed = walk(repository.root().toAbsolutePath().normalize(), retention, Instant.now());
+			logger.info("Removed {} files of old snapshots from {} in {}ms", removed, repository.root(),
+					(System.nanoTime() - start) / 1_000_000);
+		} catch (IOException | RuntimeException e) {
+			logger.warn("Failed to collect snapshots from {}", repository.root(), e);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private int walk(Path directory, Retention retention, Instant now) throws IOException, InterruptedException {
+		var directories = new ArrayList<Path>();
+		try (var stream = Files.newDirectoryStream(directory,
+				entry -> Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS))) {
+			stream.forEach(directories::add);
+		}
+		int removed = 0;
+		for (var child : directories) {
+			var name = child.getFileName().toString();
+			if (name.equals(Config.INTERNAL)) {
+				continue;
+			}
+			if (name.endsWith('-' + SNAPSHOT)) {
+				removed += prune(child, retention, now);
+			} else {
+				removed += walk(child, retention, now);
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Removes the builds of a snapshot that are no longer retained.
+	 *
+	 * @param directory The version directory of the snapshot.
+	 * @param retention Which builds to keep.
+	 * @return How many files were removed.
+	 */
+	private int prune(Path directory, Retention retention, Instant now) throws IOException, InterruptedException {
+		var relative = repository.relative(directory);
+		int count = relative.getNameCount();
+		if (count < 3) {
+			return 0;
+		}
+		var version = relative.getName(count - 1).toString();
+		var artifactId = relative.getName(count - 2).toString();
+		var groupId = relative.subpath(0, count - 2).toString().replace(relative.getFileSystem().getSeparator(), ".");
+		var base = version.substring(0, version.length() - SNAPSHOT.length());
+		var prefix = artifactId + '-' + base;
+
+		var builds = new HashMap<String, Build>();
+		try (var stream = Files.newDirectoryStream(directory)) {
+			for (var file : stream) {
+				var name = file.getFileName().toString();
+				if (!name.startsWith(prefix)) {
+					continue;
+				}
+				var matcher = TIMESTAMP.matcher(name).region(prefix.length(), name.length());
+				if (!matcher.lookingAt()) {
+					continue;
+				}
+				var value = base + matcher.group();
+				builds.computeIfAbsent(value, $ -> new Build(value, Integer.parseInt(matcher.group(2)),
+						LocalDateTime.parse(matcher.group(1), TIMESTAMP_FORMAT).toInstant(ZoneOffset.UTC))).files
+						.add(file);
+			}
+		}
+
+		var sorted = new ArrayList<>(builds.values());
+		sorted.sort((a, b) -> Integer.compare(b.number, a.number));
+		var pruned = new ArrayList<Build>();
+		for (int rank = 0; rank < sorted.size(); rank++) {
+			var build = sorted.get(rank);
+			if (!retention.keep(rank, build.built, now)) {
+				pruned.add(build);
+			}
+		}
+		if (pruned.isEmpty()) {
+			return 0;
+		}
+
+		// Metadata first, such that it never lists a build that's gone.
+		var values = new HashSet<String>();
+		for (var build : pruned) {
+			values.add(build.value);
+		}
+		repository.removeSnapshots(directory, groupId, artifactId, version, values);
+
+		int removed = 0;
+		for (var build : pruned) {
+			for (var file : build.files) {
+				if (throttle != null) {
+					long wait = throttle.acquire(1);
+					if (wait > 0) {
+						TimeUnit.NANOSECONDS.sleep(wait);
+					}
+				}
+				repository.delete(file);
+				removed++;
+			}
+		}
+		logger.debug("Removed builds {} from {}", values, directory);
+		return removed;
+	}
+
+	private static final class Build {
+		final String value;
+		final int number;
+		final Instant built;
+		final List<Path> files = new ArrayList<>();
+
+		Build(String value, int number, Instant built) {
+			this.value = value;
+			this.number = number;
+			this.built = built;
+		}
+	}
+}
@@ -0,0 +1,269 @@
+/* Copyright 2023 Ampflower
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package gay.ampflower.maven;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Short-lived bearer tokens, such that deploys from CI don't run Argon2 on
+ * every request.
+ * <p>
+ * A token is minted for a user of a host, either from the console or by
+ * {@code POST /.token} with the user's password, and only permits uploads
+ * under its path prefix until it expires. Tokens are signed by the host's
+ * secret together with the user's generation, such that changing the secret,
+ * or the password or tainting the user, revokes every token minted before,
+ * yet rehashing the password at a new cost doesn't. Single tokens, or every
+ * token of a user, may also be revoked until restarted.
+ *
+ * @author Ampflower
+ * @since 0.1.0
+ */
+final class Tokens {
+	private static final byte VERSION = 1;
+	private static final int ID_LENGTH = 16;
+	/**
+	 * Keeps token signatures apart from anything else signed by the secret.
+	 */
+	private static final byte[] DOMAIN = "maven.sock token".getBytes(StandardCharsets.US_ASCII);
+	private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+	private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+	/**
+	 * Revoked tokens by their ID, kept until they expire.
+	 */
+	private static final Map<String, Long> revoked = new ConcurrentHashMap<>();
+	/**
+	 * When each user last revoked all of their tokens, refusing any minted by
+	 * then.
+	 */
+	private static final Map<Subject, Long> notBefore = new ConcurrentHashMap<>();
+
+	static {
+		Utils.scheduler.scheduleWithFixedDelay(Tokens::purge, 1, 1, TimeUnit.MINUTES);
+	}
+
+	private Tokens() {
+	}
+
+	/**
+	 * Mints a token for the user.
+	 *
+	 * @param name   The name of the host, null for the global configuration.
+	 * @param host   The configuration of the host.
+	 * @param user   The user the token logs in as.
+	 * @param prefix The path uploads are limited to, see {@link #prefix}.
+	 * @param ttl    How long the token lasts.
+	 * @return The token, or null if there's no such user.
+	 */
+	static String mint(String name, Config.Host host, String user, String prefix, Duration ttl) {
+		if (!host.users.containsKey(user)) {
+			return null;
+		}
+		var id = new byte[ID_LENGTH];
+		Utils.getStrongRandom().nextBytes(id);
+		final long now = System.currentTimeMillis();
+		var payload = new ByteArrayOutputStream();
+		try (var out = new DataOutputStream(payload)) {
+			out.writeByte(VERSION);
+			out.write(id);
+			out.writeLong(now);
+			out.writeLong(now + ttl.toMillis());
+			out.writeUTF(Objects.requireNonNullElse(name, "*"));
+			out.writeUTF(user);
+			out.writeUTF(prefix);
+		} catch (IOException ioe) {
+			throw new AssertionError(ioe);
+		}
+		var bytes = payload.toByteArray();
+		var signature = sign(host.secret, host.generation(user), bytes);
+		return ENCODER.encodeToString(bytes) + '.' + ENCODER.encodeToString(signature);
+	}
+
+	/**
+	 * Verifies a token for the host, in constant time once parsed.
+	 *
+	 * @param snapshot The config to verify against.
+	 * @param host     The host domain for the maven.
+	 * @param token    The token as sent.
+	 * @return The token if valid, unexpired and not revoked, else null.
+	 */
+	static Token verify(Snapshot snapshot, String host, String token) {
+		int dot = token.indexOf('.');
+		if (dot < 0) {
+			return null;
+		}
+		final byte[] payload, signature;
+		try {
+			payload = DECODER.decode(token.substring(0, dot));
+			signature = DECODER.decode(token.substring(dot + 1));
+		} catch (IllegalArgumentException iae) {
+			return null;
+		}
+		var parsed = parse(payload);
+		var name = snapshot.name(host);
+		if (parsed == null || !Objects.equals(parsed.host, name)) {
+			return null;
+		}
+		var auth = snapshot.host(host);
+		if (auth == null || !auth.users.containsKey(parsed.user)
+				|| !MessageDigest.isEqual(sign(auth.secret, auth.generation(parsed.user), payload), signature)) {
+			return null;
+		}
+		if (parsed.expires - System.currentTimeMillis() <= 0 || revoked.containsKey(parsed.id)) {
+			return null;
+		}
+		var before = notBefore.get(new Subject(name, parsed.user));
+		if (before != null && parsed.issued <= before) {
+			return null;
+		}
+		return parsed;
+	}
+
+	/**
+	 * Refuses the token from now on.
+	 */
+	static void revoke(Token token) {
+		revoked.put(token.id, token.expires);
+	}
+
+	/**
+	 * Refuses every token of the user minted until now.
+	 *
+	 * @param name The name of the host, null for the global configuration.
+	 * @param user The user whose tokens to revoke.
+	 */
+	static void revokeAll(String name, String user) {
+		notBefore.put(new Subject(name, user), System.currentTimeMillis());
+	}
+
+	/**
+	 * Normalises a path prefix to start and end with {@code /}.
+	 *
+	 * @param path The path, or null for everything.
+	 * @return The prefix.
+	 * @throws IllegalArgumentException If the path has {@code .} or {@code ..}
+	 *                                  segments.
+	 */
+	static String prefix(String path) {
+		if (path == null || path.isBlank()) {
+			return "/";
+		}
+		var prefix = path.strip();
+		if (prefix.charAt(0) != '/') {
+			prefix = '/' + prefix;
+		}
+		if (prefix.charAt(prefix.length() - 1) != '/') {
+			prefix += '/';
+		}
+		if (dotted(prefix)) {
+			throw new IllegalArgumentException("Relative path: " + path);
+		}
+		return prefix;
+	}
+
+	/**
+	 * @return true if any segment of the path is {@code .} or {@code ..}.
+	 */
+	private static boolean dotted(String path) {
+		for (var segment : path.split("/")) {
+			if (segment.equals(".") || segment.equals("..")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static Token parse(byte[] payload) {
+		try (var in = new DataInputStream(new ByteArrayInputStream(payload))) {
+			if (in.readByte() != VERSION) {
+				return null;
+			}
+			var id = new byte[ID_LENGTH];
+			in.readFully(id);
+			final long issued = in.readLong();
+			final long expires = in.readLong();
+			var host = in.readUTF();
+			var user = in.readUTF();
+			var prefix = in.readUTF();
+			if (in.available() != 0) {
+				return null;
+			}
+			return new Token(ENCODER.encodeToString(id), issued, expires, "*".equals(host) ? null : host, user,
+					prefix);
+		} catch (IOException ioe) {
+			return null;
+		}
+	}
+
+	private static byte[] sign(byte[] secret, long generation, byte[] payload) {
+		try {
+			final var mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(secret, "RAW"));
+			mac.update(DOMAIN);
+			mac.update(payload);
+			mac.update(ByteBuffer.allocate(Long.BYTES).putLong(generation).flip());
+			return mac.doFinal();
+		} catch (NoSuchAlgorithmException | InvalidKeyException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Forgets revoked tokens once they've expired anyway.
+	 */
+	private static void purge() {
+		final long now = System.currentTimeMillis();
+		revoked.values().removeIf(expires -> expires - now <= 0);
+	}
+
+	/**
+	 * A verified token.
+	 *
+	 * @param id      Identifies the token for revoking.
+	 * @param issued  When the token was minted, in epoch milliseconds.
+	 * @param expires When the token expires, in epoch milliseconds.
+	 * @param host    The name of the host, null for the global configuration.
+	 * @param user    The user the token logs in as.
+	 * @param prefix  The path uploads are limited to.
+	 */
+	record Token(String id, long issued, long expires, String host, String user, String prefix) {
+		/**
+		 * @param target The path being uploaded to.
+		 * @return true if the token permits uploading to it.
+		 */
+		boolean permits(String target) {
+			return target.startsWith(prefix) && !dotted(target);
+		}
+
+		@Override
+		public String toString() {
+			return "Token{id=" + id + ", user=" + user + ", host=" + host + ", prefix=" + prefix + '}';
+		}
+	}
+
+	private record Subject(String host, String user) {
+	}
+}
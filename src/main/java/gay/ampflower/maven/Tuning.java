@@ -0,0 +1,323 @@
+/* Copyright 2023 Ampflower
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package gay.ampflower.maven;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The {@code [server]} section of {@code config.ini}, tuning how Jetty
+ * executes.
+ * <p>
+ * Anything left unset falls back to Jetty's own defaults.
+ *
+ * @author Ampflower
+ * @since 0.1.0
+ */
+final class Tuning {
+	private static final Logger logger = LoggerFactory.getLogger(Tuning.class);
+
+	/**
+	 * Entries as read, such that they are written back as the user wrote them.
+	 */
+	private final Map<String, String> raw = new LinkedHashMap<>();
+
+	Pool pool = Pool.QUEUED;
+	int minThreads = -1;
+	int maxThreads = -1;
+	int acceptors = -1;
+	int selectors = -1;
+	BufferPool bufferPool;
+	Duration idleTimeout;
+	/**
+	 * Whether the main socket accepts HTTP/2 without TLS alongside HTTP/1.1.
+	 */
+	boolean h2c;
+	/**
+	 * Whether the main socket is inherited already bound, such as from systemd,
+	 * rather than bound by the server.
+	 */
+	boolean inherit;
+	/**
+	 * How long uploads in flight may take to finish once stopping.
+	 */
+	Duration drainTimeout = Duration.ofSeconds(30);
+	/**
+	 * How many uploads larger than {@link #fastLane} may stream at once, or 0 to
+	 * not schedule uploads at all.
+	 */
+	int uploadSlots;
+	/**
+	 * Uploads up to this size skip the scheduler.
+	 */
+	long fastLane = 64 * 1024;
+	int queueDepth = 256;
+	int queueDepthPerFlow = 16;
+	/**
+	 * Sent to clients turned away due to a full queue.
+	 */
+	Duration retryAfter = Duration.ofSeconds(5);
+	Index index = Index.WATCH;
+	/**
+	 * How long a deploy session may sit idle before it's discarded.
+	 */
+	Duration sessionTimeout = Duration.ofMinutes(30);
+	/**
+	 * Whether to hard link identical uploads to one blob.
+	 */
+	boolean dedup;
+	/**
+	 * How often blobs no longer linked to are reclaimed.
+	 */
+	Duration dedupSweep = Duration.ofHours(1);
+	Precompress precompress = Precompress.OFF;
+	/**
+	 * How often old snapshots are collected, for hosts with a retention.
+	 */
+	Duration retentionInterval = Duration.ofHours(1);
+	/**
+	 * How many files per second the collector may delete, or 0 for no limit.
+	 */
+	long retentionRate = 100;
+	/**
+	 * How many upload events may wait in memory before being spilled to disk.
+	 */
+	int eventQueue = 1024;
+	int eventWorkers = 1;
+	Path eventSpill = Path.of("events.spill");
+	/**
+	 * How long a hook command may run before it's killed.
+	 */
+	Duration hookTimeout = Duration.ofMinutes(1);
+	/**
+	 * Whether to reload the config when its files change, in addition to on
+	 * {@code SIGHUP}.
+	 */
+	boolean watchConfig = true;
+	/**
+	 * How many times to verify a throwaway password before binding, such that the
+	 * first login isn't run cold, or 0 to not warm up.
+	 */
+	int warmup;
+	/**
+	 * How many logins to remember, evicting the least recently used.
+	 */
+	int authCacheSize = 4096;
+	/**
+	 * How long a successful login is remembered, less up to a fifth such that
+	 * logins don't all expire together.
+	 */
+	Duration authCacheTtl = Duration.ofMinutes(5);
+	/**
+	 * How long a failed login is remembered.
+	 */
+	Duration authNegativeTtl = Duration.ofSeconds(10);
+	/**
+	 * Whether using a remembered login extends it by another {@link #authCacheTtl}.
+	 */
+	boolean authCacheSliding;
+	/**
+	 * How many logins per minute each client, forwarded client and user may
+	 * attempt, once not remembered.
+	 */
+	int authRate = 30;
+	int authBurst = 10;
+	/**
+	 * How many failed logins in a row ban a client, for {@link #banTime} at
+	 * first then doubling with every further failure up to {@link #banMax}.
+	 */
+	int banAfter = 10;
+	Duration banTime = Duration.ofMinutes(1);
+	Duration banMax = Duration.ofHours(1);
+	/**
+	 * How many clients, forwarded clients and users are tracked apart, beyond
+	 * which some are limited together.
+	 */
+	int limiterStripes = 4096;
+	/**
+	 * The header the proxy puts the client's address in, such as
+	 * {@code CF-Connecting-IP}, or null to not trust any. Anything else sent by
+	 * the client is ignored, as it may be forged.
+	 */
+	String clientIpHeader;
+	/**
+	 * How many threads run Argon2, or 0 for as many as there are cores and fit
+	 * the heap.
+	 */
+	int argon2Threads;
+	/**
+	 * How many threads may help fill a hash's lanes in parallel, or -1 for one
+	 * less than there are cores. Only idle helpers are used.
+	 */
+	int argon2Helpers = -1;
+	/**
+	 * How many logins may wait for Argon2, beyond which they're turned away.
+	 */
+	int argon2Queue = 64;
+	/**
+	 * How long a login may wait for Argon2 before it's turned away.
+	 */
+	Duration argon2Deadline = Duration.ofSeconds(10);
+	/**
+	 * How long verifying a password should take, as calibrated for.
+	 */
+	Duration argon2Target = Duration.ofMillis(500);
+	/**
+	 * How much memory each password hash may use, as calibrated for.
+	 */
+	long argon2Memory = 8 * 1024 * 1024;
+	/**
+	 * Whether to calibrate the cost of password hashes on startup, rather than
+	 * only from the console.
+	 */
+	boolean argon2Calibrate;
+	/**
+	 * How long tokens minted by {@code POST /.token} last unless asked for less.
+	 */
+	Duration tokenTtl = Duration.ofHours(1);
+	/**
+	 * How long tokens minted by {@code POST /.token} may last at most.
+	 */
+	Duration tokenMaxTtl = Duration.ofDays(1);
+
+	/**
+	 * Reads an entry from the {@code [server]} section.
+	 *
+	 * @throws IllegalArgumentException If the value is malformed.
+	 */
+	void set(String key, String value) {
+		var trimmed = value.strip();
+		switch (key) {
+			case "pool" -> pool = Pool.valueOf(trimmed.toUpperCase(Locale.ROOT));
+			case "min_threads" -> minThreads = Integer.parseInt(trimmed);
+			case "max_threads" -> maxThreads = Integer.parseInt(trimmed);
+			case "acceptors" -> acceptors = Integer.parseInt(trimmed);
+			case "selectors" -> selectors = Integer.parseInt(trimmed);
+			case "buffer_pool" -> bufferPool = BufferPool.valueOf(trimmed.toUpperCase(Locale.ROOT));
+			case "idle_timeout" -> idleTimeout = Utils.parseDuration(trimmed);
+			case "h2c" -> h2c = Boolean.parseBoolean(trimmed);
+			case "inherit" -> inherit = Boolean.parseBoolean(trimmed);
+			case "drain_timeout" -> drainTimeout = Utils.parseDuration(trimmed);
+			case "upload_slots" -> uploadSlots = Integer.parseInt(trimmed);
+			case "fast_lane" -> fastLane = Utils.parseSize(trimmed);
+			case "queue_depth" -> queueDepth = Integer.parseInt(trimmed);
+			case "queue_depth_per_flow" -> queueDepthPerFlow = Integer.parseInt(trimmed);
+			case "retry_after" -> retryAfter = Utils.parseDuration(trimmed);
+			case "index" -> index = Index.valueOf(trimmed.toUpperCase(Locale.ROOT));
+			case "session_timeout" -> sessionTimeout = Utils.parseDuration(trimmed);
+			case "dedup" -> dedup = Boolean.parseBoolean(trimmed);
+			case "dedup_sweep" -> dedupSweep = Utils.parseDuration(trimmed);
+			case "precompress" -> precompress = Precompress.valueOf(trimmed.toUpperCase(Locale.ROOT));
+			case "retention_interval" -> retentionInterval = Utils.parseDuration(trimmed);
+			case "retention_rate" -> retentionRate = Long.parseLong(trimmed);
+			case "event_queue" -> eventQueue = Integer.parseInt(trimmed);
+			case "event_workers" -> eventWorkers = Integer.parseInt(trimmed);
+			case "event_spill" -> eventSpill = Path.of(trimmed);
+			case "hook_timeout" -> hookTimeout = Utils.parseDuration(trimmed);
+			case "watch_config" -> watchConfig = Boolean.parseBoolean(trimmed);
+			case "warmup" -> warmup = Integer.parseInt(trimmed);
+			case "auth_cache_size" -> authCacheSize = Integer.parseInt(trimmed);
+			case "auth_cache_ttl" -> authCacheTtl = Utils.parseDuration(trimmed);
+			case "auth_negative_ttl" -> authNegativeTtl = Utils.parseDuration(trimmed);
+			case "auth_cache_sliding" -> authCacheSliding = Boolean.parseBoolean(trimmed);
+			case "auth_rate" -> authRate = Integer.parseInt(trimmed);
+			case "auth_burst" -> authBurst = Integer.parseInt(trimmed);
+			case "ban_after" -> banAfter = Integer.parseInt(trimmed);
+			case "ban_time" -> banTime = Utils.parseDuration(trimmed);
+			case "ban_max" -> banMax = Utils.parseDuration(trimmed);
+			case "limiter_stripes" -> limiterStripes = Integer.parseInt(trimmed);
+			case "client_ip_header" -> clientIpHeader = trimmed.isEmpty() ? null : trimmed;
+			case "argon2_threads" -> argon2Threads = Integer.parseInt(trimmed);
+			case "argon2_helpers" -> argon2Helpers = Integer.parseInt(trimmed);
+			case "argon2_queue" -> argon2Queue = Integer.parseInt(trimmed);
+			case "argon2_deadline" -> argon2Deadline = Utils.parseDuration(trimmed);
+			case "argon2_target" -> argon2Target = Utils.parseDuration(trimmed);
+			case "argon2_memory" -> argon2Memory = Utils.parseSize(trimmed);
+			case "argon2_calibrate" -> argon2Calibrate = Boolean.parseBoolean(trimmed);
+			case "token_ttl" -> tokenTtl = Utils.parseDuration(trimmed);
+			case "token_max_ttl" -> tokenMaxTtl = Utils.parseDuration(trimmed);
+			default -> {
+				logger.warn("Unknown entry {}={} from server section", key, value);
+				return;
+			}
+		}
+		raw.put(key, value);
+	}
+
+	void write(Ini.IniWriter ini) throws IOException {
+		if (raw.isEmpty()) {
+			return;
+		}
+		ini.section("server");
+		for (var entry : raw.entrySet()) {
+			ini.entry(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * What threads Jetty runs on.
+	 */
+	enum Pool {
+		/**
+		 * Jetty's own pool of platform threads.
+		 */
+		QUEUED,
+		/**
+		 * A virtual thread per task, requiring Java 21 or newer. Threads blocked
+		 * on reading metadata then cost next to nothing.
+		 */
+		VIRTUAL,
+	}
+
+	/**
+	 * How uploads determine what already exists in the repository.
+	 */
+	enum Index {
+		/**
+		 * Always ask the disk.
+		 */
+		OFF,
+		/**
+		 * Index the repository at startup, assuming only this server writes to it.
+		 */
+		STATIC,
+		/**
+		 * Index the repository at startup and watch for changes made by anything
+		 * else, falling back to the disk if it can't keep up.
+		 */
+		WATCH,
+	}
+
+	/**
+	 * When to generate gzip siblings of text files.
+	 */
+	enum Precompress {
+		OFF,
+		/**
+		 * Before responding to the upload.
+		 */
+		INLINE,
+		/**
+		 * After responding, such that the uploader isn't kept waiting.
+		 */
+		BACKGROUND,
+	}
+
+	/**
+	 * Which of Jetty's buffer pools to use.
+	 */
+	enum BufferPool {
+		ARRAY, LOGARITHMIC, MAPPED,
+	}
+}
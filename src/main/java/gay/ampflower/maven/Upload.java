@@ -0,0 +1,262 @@
+/* Copyright 2023 Ampflower
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package gay.ampflower.maven;
+
+import gay.ampflower.maven.concurrent.Throttle;
+import gay.ampflower.maven.hook.UploadEvent;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking upload of a request body into a file.
+ * <p>
+ * The body is read as the container signals that data is available, so no
+ * thread is held for the duration of a slow upload. It is written into
+ * staging first, and only published by the {@link Repository} once complete,
+ * so readers never observe a partial file. The checksums are computed as the
+ * body streams through, sparing a second read of the file.
+ *
+ * @author Ampflower
+ * @since 0.1.0
+ */
+final class Upload implements ReadListener {
+	private static final Logger logger = LoggerFactory.getLogger(Upload.class);
+	/**
+	 * Size of each buffer leased from the connector's pool.
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final AsyncContext async;
+	private final ServletInputStream input;
+	private final HttpServletResponse response;
+	private final ByteBufferPool pool;
+	private final Repository repository;
+	private final Session session;
+	private final Path path;
+	private final Checksums.Digester digester = new Checksums.Digester();
+	private final Throttle throttle;
+	private final Runnable release;
+	private final long expected;
+	private final long limit;
+	private final Maven.Describe description;
+	private final Events events;
+
+	private Path temp;
+	private FileChannel channel;
+	private ByteBuffer buffer;
+	private long written;
+	private boolean done;
+
+	/**
+	 * @param async       The async context of the request, completed when the
+	 *                    upload either succeeds or fails.
+	 * @param input       The request body.
+	 * @param response    The response to report the result to.
+	 * @param pool        The pool to lease the transfer buffer from.
+	 * @param repository  The repository to stage and publish the body into.
+	 * @param session     The session to stage the body into instead of
+	 *                    publishing it, if any.
+	 * @param path        The file to publish the body as.
+	 * @param expected    The expected length of the body, or -1 if unknown.
+	 * @param limit       The largest the body may be, aborting the upload once
+	 *                    crossed.
+	 * @param description What to log the upload as.
+	 * @param events      Where to emit the upload to once published, if anywhere.
+	 * @param throttle    The bandwidth limit of the uploader, if any.
+	 * @param release     Called once the upload is done, successful or not.
+	 */
+	Upload(AsyncContext async, ServletInputStream input, HttpServletResponse response, ByteBufferPool pool,
+			Repository repository, Session session, Path path, long expected, long limit,
+			Maven.Describe description, Events events, Throttle throttle, Runnable release) {
+		this.async = async;
+		this.input = input;
+		this.response = response;
+		this.pool = pool;
+		this.repository = repository;
+		this.session = session;
+		this.path = path;
+		this.expected = expected;
+		this.limit = limit;
+		this.description = description;
+		this.events = events;
+		this.throttle = throttle;
+		this.release = release;
+	}
+
+	/**
+	 * Creates the staging file and registers itself on the request body, failing
+	 * the upload if the staging file cannot be created.
+	 */
+	void start() {
+		try {
+			temp = Utils.createStagingFile(repository.staging());
+			channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+			// Extends the file to its final length up front, sparing the filesystem from
+			// growing the file on every write.
+			if (expected > 0) {
+				channel.write(ByteBuffer.allocate(1), expected - 1);
+			}
+			// The servlet API can only read into arrays, so the buffer must be heap-backed.
+			buffer = pool.acquire(BUFFER_SIZE, false);
+			input.setReadListener(this);
+		} catch (IOException | RuntimeException e) {
+			onError(e);
+		}
+	}
+
+	@Override
+	public void onDataAvailable() throws IOException {
+		final var array = buffer.array();
+		final int offset = buffer.arrayOffset();
+		int read;
+		while (input.isReady() && (read = input.read(array, offset, buffer.capacity())) >= 0) {
+			// Bodies without a length are only known to be too large once they are.
+			if (limit - written < read) {
+				logger.info("upload too large: {}, over {} bytes", description, limit);
+				fail(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+				return;
+			}
+			digester.update(array, offset, read);
+			buffer.clear().limit(read);
+			while (buffer.hasRemaining()) {
+				written += channel.write(buffer);
+			}
+			if (throttle != null) {
+				final long wait = throttle.acquire(read);
+				if (wait > 0) {
+					// Stopping while the input is still ready means the container won't call
+					// back, so resuming is on us.
+					Utils.scheduler.schedule(() -> async.start(this::resume), wait, TimeUnit.NANOSECONDS);
+					return;
+				}
+			}
+		}
+	}
+
+	private void resume() {
+		try {
+			onDataAvailable();
+		} catch (IOException | RuntimeException e) {
+			onError(e);
+		}
+	}
+
+	@Override
+	public void onAllDataRead() throws IOException {
+		if (expected >= 0 && written != expected) {
+			onError(new IOException("Expected " + expected + " bytes, got " + written));
+			return;
+		}
+		var checksums = digester.finish();
+		try {
+			if (session != null) {
+				// Flushed along with the rest of the session once committed.
+				channel.close();
+				session.stage(temp, path, checksums);
+			} else {
+				// Data must be durable before the rename is, else a crash may publish an
+				// empty file.
+				channel.force(false);
+				channel.close();
+				repository.publish(temp, path, checksums);
+			}
+		} catch (FileAlreadyExistsException faee) {
+			logger.info("attempted replacing: {}, published meanwhile", description);
+			fail(HttpServletResponse.SC_CONFLICT);
+			return;
+		} catch (IOException ioe) {
+			onError(ioe);
+			return;
+		}
+		release();
+
+		logger.info("successful upload: {}, {} bytes", description, written);
+		response.setStatus(HttpServletResponse.SC_CREATED);
+		finish();
+		// Sessions are emitted once committed instead.
+		if (events != null && session == null) {
+			events.emit(new UploadEvent(Instant.now(), description.host(), description.user().username(),
+					description.target(), written, checksums.hex()));
+		}
+	}
+
+	@Override
+	public void onError(Throwable t) {
+		if (done) {
+			return;
+		}
+		logger.warn("failed upload: {} after {} bytes", description, written, t);
+		fail(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+	}
+
+	/**
+	 * Abandons the upload, cleaning up after it.
+	 *
+	 * @param status The status to respond with, if not already responded.
+	 */
+	private void fail(int status) {
+		if (done) {
+			return;
+		}
+		cleanup();
+		if (!response.isCommitted()) {
+			response.setStatus(status);
+		}
+		finish();
+	}
+
+	/**
+	 * Completes the request and releases the upload's slot.
+	 */
+	private void finish() {
+		done = true;
+		async.complete();
+		if (release != null) {
+			release.run();
+		}
+	}
+
+	/**
+	 * Closes and deletes the staging file, releasing the buffer.
+	 */
+	private void cleanup() {
+		try {
+			if (channel != null) {
+				channel.close();
+			}
+			if (temp != null) {
+				Files.deleteIfExists(temp);
+			}
+		} catch (IOException ioe) {
+			logger.warn("Failed to clean up {}", temp, ioe);
+		}
+		release();
+	}
+
+	private void release() {
+		final var buffer = this.buffer;
+		if (buffer != null) {
+			this.buffer = null;
+			pool.release(buffer);
+		}
+	}
+}
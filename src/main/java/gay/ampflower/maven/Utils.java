@@ -13,24 +13,29 @@ import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.LineNumberReader;
 import java.io.Writer;
-import java.lang.invoke.MethodHandles;
-import java.lang.invoke.VarHandle;
-import java.nio.ByteOrder;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileAttribute;
 import java.nio.file.attribute.PosixFilePermission;
 import java.nio.file.attribute.PosixFilePermissions;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -49,13 +54,10 @@ public final class Utils {
 	 */
 	static final Base64.Encoder ENCODER = Base64.getEncoder().withoutPadding();
 	/**
-	 * Allows for reading nonce for hashing purposes.
+	 * Non-blocking instance of SecureRandom, for where being unpredictable is
+	 * enough, such as nonces.
 	 */
-	static final VarHandle BYTES_AS_INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.nativeOrder());
-	/**
-	 * Strong instance of SecureRandom.
-	 */
-	private static SecureRandom STRONG_RANDOM;
+	private static final SecureRandom RANDOM = new SecureRandom();
 	/**
 	 * Safe writing options for writing a store.
 	 */
@@ -74,20 +76,118 @@ public final class Utils {
 	});
 
 	static {
-		// Pre-initialise it.
-		getStrongRandom();
+		// Seeds it in the background, as it may block on entropy on fresh machines.
+		final var thread = new Thread(() -> StrongRandom.INSTANCE.nextBytes(new byte[1]), "strong random");
+		thread.setDaemon(true);
+		thread.start();
 	}
 
+	/**
+	 * @return The strong instance of SecureRandom, blocking until it's seeded.
+	 */
 	public static SecureRandom getStrongRandom() {
-		final var rng = STRONG_RANDOM;
-		if (rng == null)
+		return StrongRandom.INSTANCE;
+	}
+
+	/**
+	 * @return The non-blocking instance of SecureRandom.
+	 */
+	public static SecureRandom getRandom() {
+		return RANDOM;
+	}
+
+	/**
+	 * Holds the strong instance of SecureRandom, such that it's only created on
+	 * first use.
+	 */
+	private static final class StrongRandom {
+		private static final SecureRandom INSTANCE;
+
+		static {
 			try {
-				return STRONG_RANDOM = SecureRandom.getInstanceStrong();
+				INSTANCE = SecureRandom.getInstanceStrong();
 			} catch (NoSuchAlgorithmException nsae) {
 				throw new AssertionError("Unable to initialise StrongRandom for use.", nsae);
 			}
+		}
+	}
+
+	/**
+	 * Parses a size such as {@code 512}, {@code 64K}, {@code 24M} or {@code 2G}.
+	 * Suffixes are binary multiples, and a bare number is in bytes.
+	 *
+	 * @param size The size to parse.
+	 * @return The size in bytes.
+	 * @throws IllegalArgumentException If the size is malformed.
+	 */
+	public static long parseSize(String size) {
+		final var trimmed = size.strip();
+		if (trimmed.isEmpty()) {
+			throw new IllegalArgumentException("Empty size");
+		}
+		final int shift = switch (Character.toUpperCase(trimmed.charAt(trimmed.length() - 1))) {
+			case 'K' -> 10;
+			case 'M' -> 20;
+			case 'G' -> 30;
+			case 'T' -> 40;
+			default -> 0;
+		};
+		final var digits = shift == 0 ? trimmed : trimmed.substring(0, trimmed.length() - 1);
+		final long value = Long.parseUnsignedLong(digits.strip());
+		if (Long.numberOfLeadingZeros(value) <= shift) {
+			throw new IllegalArgumentException("Size too large: " + size);
+		}
+		return value << shift;
+	}
 
-		return rng;
+	/**
+	 * Parses a duration such as {@code 500ms}, {@code 30s}, {@code 5m},
+	 * {@code 12h} or {@code 7d}. A bare number is in seconds.
+	 *
+	 * @param duration The duration to parse.
+	 * @return The parsed duration.
+	 * @throws IllegalArgumentException If the duration is malformed.
+	 */
+	public static Duration parseDuration(String duration) {
+		final var trimmed = duration.strip();
+		int i = 0;
+		while (i < trimmed.length() && Character.isDigit(trimmed.charAt(i))) {
+			i++;
+		}
+		if (i == 0) {
+			throw new IllegalArgumentException("Invalid duration: " + duration);
+		}
+		final long value = Long.parseLong(trimmed, 0, i, 10);
+		return switch (trimmed.substring(i).strip()) {
+			case "ms" -> Duration.ofMillis(value);
+			case "", "s" -> Duration.ofSeconds(value);
+			case "m" -> Duration.ofMinutes(value);
+			case "h" -> Duration.ofHours(value);
+			case "d" -> Duration.ofDays(value);
+			default -> throw new IllegalArgumentException("Invalid duration unit: " + duration);
+		};
+	}
+
+	/**
+	 * Creates a factory for virtual threads, only available on Java 21 and newer.
+	 * <p>
+	 * Looked up reflectively, as the build still targets Java 17.
+	 *
+	 * @param prefix The name prefix for each thread, suffixed by a counter.
+	 * @return A factory for virtual threads.
+	 * @throws UnsupportedOperationException If the runtime doesn't support virtual
+	 *                                       threads.
+	 */
+	public static ThreadFactory virtualThreadFactory(String prefix) {
+		try {
+			final var builderClass = Class.forName("java.lang.Thread$Builder");
+			final var builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			final var named = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(named);
+		} catch (ReflectiveOperationException roe) {
+			throw new UnsupportedOperationException(
+					"Virtual threads require Java 21 or newer, running " + Runtime.version(), roe);
+		}
 	}
 
 	public static boolean contains(final Object[] array, Object obj) {
@@ -140,9 +240,70 @@ public final class Utils {
 		return new LineNumberReader(reader);
 	}
 
+	/**
+	 * Creates a uniquely named file within staging.
+	 * <p>
+	 * Unlike {@link Files#createTempFile(Path, String, String, FileAttribute[])},
+	 * the file is created with the default permissions, as it will be published
+	 * as-is into the repository.
+	 *
+	 * @param staging The staging directory to create the file within.
+	 * @return The newly created, empty file.
+	 */
+	public static Path createStagingFile(Path staging) throws IOException {
+		final var random = ThreadLocalRandom.current();
+		while (true) {
+			try {
+				return Files.createFile(staging.resolve("upload-" + Long.toUnsignedString(random.nextLong(), 36)));
+			} catch (FileAlreadyExistsException ignored) {
+				// Try again with a new name.
+			}
+		}
+	}
+
+	/**
+	 * Flushes a file or directory to disk. Directories are flushed such that
+	 * renames into them are durable, on platforms that allow opening them.
+	 */
+	public static void force(Path path) throws IOException {
+		try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException ioe) {
+			if (!Files.isDirectory(path)) {
+				throw ioe;
+			}
+			// Not every platform can open directories, there's nothing else to be done.
+		}
+	}
+
+	/**
+	 * Deletes a file, or a directory and everything within it.
+	 */
+	public static void deleteRecursively(Path path) throws IOException {
+		if (Files.notExists(path, LinkOption.NOFOLLOW_LINKS)) {
+			return;
+		}
+		Files.walkFileTree(path, new SimpleFileVisitor<>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+				if (exc != null) {
+					throw exc;
+				}
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
 	public static byte[] createSecret() {
 		final var $secret = new byte[1024];
-		STRONG_RANDOM.nextBytes($secret);
+		getStrongRandom().nextBytes($secret);
 		return $secret;
 	}
 
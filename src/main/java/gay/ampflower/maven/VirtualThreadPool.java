@@ -0,0 +1,103 @@
+/* Copyright 2023 Ampflower
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package gay.ampflower.maven;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.eclipse.jetty.util.thread.TryExecutor;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs every task Jetty hands off on a virtual thread of its own.
+ * <p>
+ * Jetty's own {@code ExecutorThreadPool} replaces the thread factory of the
+ * executor it's given, such that it'd run on platform threads instead.
+ * Virtual threads are never short, so tasks are always accepted straight
+ * away.
+ *
+ * @author Ampflower
+ * @since 0.1.0
+ */
+final class VirtualThreadPool extends AbstractLifeCycle implements ThreadPool, TryExecutor {
+	private final ThreadFactory factory;
+	private final AtomicInteger threads = new AtomicInteger();
+	private volatile CountDownLatch stopped = new CountDownLatch(1);
+
+	/**
+	 * @param prefix The name of the threads, suffixed by a counter.
+	 * @throws UnsupportedOperationException If virtual threads aren't available.
+	 */
+	VirtualThreadPool(String prefix) {
+		this.factory = Utils.virtualThreadFactory(prefix);
+	}
+
+	@Override
+	protected void doStart() throws Exception {
+		stopped = new CountDownLatch(1);
+		super.doStart();
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+		super.doStop();
+		stopped.countDown();
+	}
+
+	@Override
+	public boolean tryExecute(Runnable task) {
+		execute(task);
+		return true;
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		var thread = factory.newThread(() -> {
+			threads.incrementAndGet();
+			try {
+				task.run();
+			} finally {
+				threads.decrementAndGet();
+			}
+		});
+		if (thread == null) {
+			throw new RejectedExecutionException("No thread for " + task);
+		}
+		thread.start();
+	}
+
+	@Override
+	public void join() throws InterruptedException {
+		stopped.await();
+	}
+
+	/**
+	 * @return How many tasks are running.
+	 */
+	@Override
+	public int getThreads() {
+		return threads.get();
+	}
+
+	@Override
+	public int getIdleThreads() {
+		return 0;
+	}
+
+	@Override
+	public boolean isLowOnThreads() {
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return "VirtualThreadPool{threads=" + threads.get() + '}';
+	}
+}
@@ -0,0 +1,166 @@
+/* Copyright 2023 Ampflower
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package gay.ampflower.maven;
+
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.Server;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.LineNumberReader;
+import java.io.StringReader;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Base64;
+
+/**
+ * Runs the paths every request takes before the server is ready, such that
+ * the first uploads aren't served by cold classes and interpreted Argon2.
+ *
+ * @author Ampflower
+ * @since 0.1.0
+ */
+final class Warmup {
+	private static final Logger logger = LoggerFactory.getLogger(Warmup.class);
+	private static final String HOST = "warmup";
+	private static final String POM = """
+			<?xml version="1.0" encoding="UTF-8"?>
+			<project xmlns="http://maven.apache.org/POM/4.0.0">
+			  <modelVersion>4.0.0</modelVersion>
+			  <groupId>com.example</groupId>
+			  <artifactId>warmup</artifactId>
+			  <version>1.0.0</version>
+			</project>
+			""";
+	private static final String INI = """
+			socket=./maven.sock
+
+			[hosts]
+			*=./maven
+
+			[server]
+			idle_timeout=30s
+			""";
+
+	/**
+	 * Warms up logins and parsing against throwaway data.
+	 *
+	 * @param rounds How many times to verify a password.
+	 */
+	static void run(int rounds) {
+		long start = System.nanoTime();
+		try {
+			// Throwaway, so there's no need to wait for the strong random.
+			var random = Utils.getRandom();
+			var secret = new byte[1024];
+			var salt = new byte[8];
+			random.nextBytes(secret);
+			random.nextBytes(salt);
+			var password = "warmup".getBytes(StandardCharsets.UTF_8);
+			var params = Argon2.initArgon2id(secret, salt, Argon2.Cost.DEFAULT);
+			var output = new byte[32];
+			Argon2.execute(params, password, output);
+			var encoded = Argon2.encode(params, output);
+			for (int i = 0; i < rounds; i++) {
+				if (!Passwd.verify(encoded, password, secret)) {
+					throw new AssertionError("Warmup password failed verification.");
+				}
+			}
+
+			Ini.read(new LineNumberReader(new StringReader(INI)), (section, key, value) -> {
+			});
+
+			Passwd.user("Basic " + Base64.getEncoder().encodeToString(password)).close();
+			var metadata = new Metadata("com.example", "warmup", "1.0.0-SNAPSHOT");
+			metadata.addVersion("1.0.0-SNAPSHOT");
+			metadata.addSnapshot("warmup-1.0.0-20230101.000000-1.jar");
+			var rendered = metadata.render();
+			Metadata.parse(rendered);
+			Checksums.of(rendered).hex();
+		} catch (IOException | RuntimeException e) {
+			logger.warn("Failed to warm up", e);
+			return;
+		}
+		logger.info("Warmed up in {}ms", (System.nanoTime() - start) / 1_000_000);
+	}
+
+	/**
+	 * Warms up, then serves a throwaway repository, loading every class a real
+	 * server would for recording into a class data sharing archive.
+	 *
+	 * @param directory An empty directory to run the server from.
+	 */
+	static void train(Path directory) throws Exception {
+		run(1);
+		serve(directory);
+		logger.info("Trained against {}", directory);
+	}
+
+	/**
+	 * Starts a throwaway server for a throwaway host and user, and deploys to
+	 * it, such that logins, uploads and publishing aren't run cold either.
+	 *
+	 * @param directory An empty directory to run the server from, removed once
+	 *                  done.
+	 */
+	static void serve(Path directory) throws Exception {
+		long start = System.nanoTime();
+		var config = new Config(directory);
+		config.socket = directory.resolve("maven.sock");
+		config.createHost(HOST, directory.resolve("maven"));
+		// Cheap, as only the path taken matters here.
+		config.cost(new Argon2.Cost(1024, 1, 1));
+		config.authorize(HOST, "user", "warmup".toCharArray());
+		config.init();
+		var server = new Server();
+		var listener = Listener.primary(config.socket, config.server);
+		server.addConnector(listener.connector(server, null, new HttpConfiguration()));
+		server.setHandler(new Maven(config, new Reloader(config)));
+		server.start();
+		try {
+			var pom = POM.getBytes(StandardCharsets.UTF_8);
+			var path = "/com/example/warmup/1.0.0/warmup-1.0.0.pom";
+			put(config.socket, path, pom);
+			put(config.socket, path + ".sha1",
+					Checksums.of(pom).hex(Checksum.SHA1).getBytes(StandardCharsets.US_ASCII));
+		} finally {
+			server.stop();
+			// Logins are remembered by host and user, which are throwaway.
+			Passwd.invalidate(HOST, null);
+			Utils.deleteRecursively(directory);
+		}
+		logger.info("Warmed up the handler in {}ms", (System.nanoTime() - start) / 1_000_000);
+	}
+
+	/**
+	 * Uploads a file as the throwaway user, over a connection of its own.
+	 */
+	private static void put(Path socket, String path, byte[] body) throws IOException {
+		try (var channel = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+			channel.connect(UnixDomainSocketAddress.of(socket));
+			channel.write(StandardCharsets.US_ASCII.encode("PUT " + path + " HTTP/1.1\r\n" + "Host: " + HOST
+					+ "\r\nAuthorization: Basic dXNlcjp3YXJtdXA=\r\nContent-Length: " + body.length
+					+ "\r\nConnection: close\r\n\r\n"));
+			channel.write(ByteBuffer.wrap(body));
+			var response = new ByteArrayOutputStream();
+			var buffer = ByteBuffer.allocate(1024);
+			while (channel.read(buffer.clear()) >= 0) {
+				response.write(buffer.array(), 0, buffer.position());
+			}
+			var status = response.toString(StandardCharsets.US_ASCII).lines().findFirst().orElse("");
+			if (!status.contains(" 201 ")) {
+				logger.warn("Warmup upload of {} answered {}", path, status);
+			}
+		}
+	}
+}
@@ -0,0 +1,226 @@
+/* Copyright 2023 Ampflower
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package gay.ampflower.maven.concurrent;
+
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs expensive tasks on a fixed number of threads behind a bounded queue,
+ * such that callers never wait on them.
+ * <p>
+ * Each task has a deadline it must start by, and the earliest deadline runs
+ * first. A task that couldn't start in time is shed instead of run, as does
+ * the oldest task when it's in the way of a new one and already past its
+ * deadline.
+ *
+ * @author Ampflower
+ * @since 0.1.0
+ */
+public final class DeadlineExecutor {
+	private final int maxQueued;
+	private final Thread[] workers;
+
+	private final PriorityQueue<Task> queue = new PriorityQueue<>();
+	private int running;
+	private long sequence;
+	private boolean stopped;
+
+	private final LongAdder executed = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder expired = new LongAdder();
+	private final LongAdder waited = new LongAdder();
+	private final LongAccumulator maxWait = new LongAccumulator(Math::max, 0);
+
+	/**
+	 * @param name      The name of the worker threads, suffixed by their index.
+	 * @param threads   How many tasks may run at once.
+	 * @param maxQueued How many tasks may wait.
+	 */
+	public DeadlineExecutor(String name, int threads, int maxQueued) {
+		if (threads <= 0) {
+			throw new IllegalArgumentException("threads must be positive: " + threads);
+		}
+		this.maxQueued = maxQueued;
+		this.workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			var worker = new Thread(this::work, name + '-' + i);
+			worker.setDaemon(true);
+			workers[i] = worker;
+			worker.start();
+		}
+	}
+
+	/**
+	 * Queues a task.
+	 *
+	 * @param deadline When the task must start by, by {@link System#nanoTime()}.
+	 * @param task     The task to run once a thread is free.
+	 * @param shed     Run instead of the task if it doesn't start by its
+	 *                 deadline.
+	 * @return false if the task was rejected as the queue is full, in which case
+	 *         neither is run.
+	 */
+	public boolean submit(long deadline, Runnable task, Runnable shed) {
+		final long now = System.nanoTime();
+		var late = new ArrayList<Task>(0);
+		try {
+			synchronized (this) {
+				if (stopped) {
+					rejected.increment();
+					return false;
+				}
+				// Makes room by dropping whatever would be shed once reached anyway.
+				Task head;
+				while (queue.size() >= maxQueued && (head = queue.peek()) != null && head.deadline - now < 0) {
+					late.add(queue.poll());
+				}
+				if (queue.size() >= maxQueued) {
+					rejected.increment();
+					return false;
+				}
+				queue.add(new Task(deadline, now, sequence++, task, shed));
+				notify();
+				return true;
+			}
+		} finally {
+			for (var expired : late) {
+				shed(expired, now);
+			}
+		}
+	}
+
+	/**
+	 * Stops taking tasks, letting those queued run or shed.
+	 */
+	public synchronized void shutdown() {
+		stopped = true;
+		notifyAll();
+	}
+
+	private void work() {
+		while (true) {
+			Task task;
+			synchronized (this) {
+				while ((task = queue.poll()) == null) {
+					if (stopped) {
+						return;
+					}
+					try {
+						wait();
+					} catch (InterruptedException ignored) {
+						// Only stopped by shutdown.
+					}
+				}
+				running++;
+			}
+			final long now = System.nanoTime();
+			try {
+				if (task.deadline - now < 0) {
+					shed(task, now);
+				} else {
+					final long wait = now - task.queued;
+					waited.add(wait);
+					maxWait.accumulate(wait);
+					executed.increment();
+					task.task.run();
+				}
+			} catch (Throwable t) {
+				var thread = Thread.currentThread();
+				thread.getUncaughtExceptionHandler().uncaughtException(thread, t);
+			} finally {
+				synchronized (this) {
+					running--;
+				}
+			}
+		}
+	}
+
+	private void shed(Task task, long now) {
+		final long wait = now - task.queued;
+		waited.add(wait);
+		maxWait.accumulate(wait);
+		expired.increment();
+		task.shed.run();
+	}
+
+	/**
+	 * @return How many tasks are currently waiting.
+	 */
+	public synchronized int queued() {
+		return queue.size();
+	}
+
+	/**
+	 * @return How many tasks are currently running.
+	 */
+	public synchronized int running() {
+		return running;
+	}
+
+	/**
+	 * @return How many threads run tasks.
+	 */
+	public int threads() {
+		return workers.length;
+	}
+
+	/**
+	 * @return How many tasks were run.
+	 */
+	public long executed() {
+		return executed.sum();
+	}
+
+	/**
+	 * @return How many tasks were turned away for a full queue.
+	 */
+	public long rejected() {
+		return rejected.sum();
+	}
+
+	/**
+	 * @return How many tasks were shed for missing their deadline.
+	 */
+	public long expired() {
+		return expired.sum();
+	}
+
+	/**
+	 * @return The average time tasks spent queued, in nanoseconds.
+	 */
+	public long averageWait() {
+		final long count = executed.sum() + expired.sum();
+		return count == 0 ? 0 : waited.sum() / count;
+	}
+
+	/**
+	 * @return The longest time a task spent queued since last asked, in
+	 *         nanoseconds.
+	 */
+	public long maxWait() {
+		return maxWait.getThenReset();
+	}
+
+	@Override
+	public String toString() {
+		return "DeadlineExecutor{threads=" + workers.length + ", running=" + running() + ", queued=" + queued()
+				+ ", executed=" + executed() + ", rejected=" + rejected() + ", expired=" + expired() + ", averageWait="
+				+ averageWait() / 1_000_000 + "ms}";
+	}
+
+	private record Task(long deadline, long queued, long sequence, Runnable task, Runnable shed)
+			implements Comparable<Task> {
+		@Override
+		public int compareTo(Task o) {
+			int c = Long.compare(deadline - o.deadline, 0);
+			return c != 0 ? c : Long.compare(sequence, o.sequence);
+		}
+	}
+}
@@ -0,0 +1,144 @@
+/* Copyright 2023 Ampflower
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package gay.ampflower.maven.concurrent;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Admits tasks into a fixed number of slots, sharing them between flows by
+ * weight and cost.
+ * <p>
+ * Implemented as start-time fair queueing: each task is tagged with the
+ * virtual time its flow would finish it at, were every flow served at once in
+ * proportion to its weight, and the earliest tag is admitted first. A flow
+ * submitting large tasks thereby cannot starve a flow submitting small ones.
+ *
+ * @author Ampflower
+ * @since 0.1.0
+ */
+public final class FairScheduler {
+	private final int slots;
+	private final int maxQueued;
+	private final int maxQueuedPerFlow;
+
+	private final PriorityQueue<Task> queue = new PriorityQueue<>();
+	private final Map<Object, Flow> flows = new HashMap<>();
+	private int running;
+	private long sequence;
+	/**
+	 * The start tag of the last admitted task.
+	 */
+	private double virtualTime;
+
+	/**
+	 * @param slots            How many tasks may run at once.
+	 * @param maxQueued        How many tasks may wait in total.
+	 * @param maxQueuedPerFlow How many tasks may wait per flow.
+	 */
+	public FairScheduler(int slots, int maxQueued, int maxQueuedPerFlow) {
+		if (slots <= 0) {
+			throw new IllegalArgumentException("slots must be positive: " + slots);
+		}
+		this.slots = slots;
+		this.maxQueued = maxQueued;
+		this.maxQueuedPerFlow = maxQueuedPerFlow;
+	}
+
+	/**
+	 * Submits a task, running it on the calling thread if a slot is free, or
+	 * else on whichever thread releases the slot it gets admitted into.
+	 * <p>
+	 * The task must eventually call {@link #release()} once admitted.
+	 *
+	 * @param flow   What the task is accounted against, compared by equality.
+	 * @param weight The share the flow gets relative to other flows.
+	 * @param cost   The expected cost of the task, such as its size in bytes.
+	 * @param task   The task to run once admitted.
+	 * @return false if the task was rejected as the queue is full.
+	 */
+	public boolean submit(Object flow, int weight, long cost, Runnable task) {
+		synchronized (this) {
+			var state = flows.computeIfAbsent(flow, Flow::new);
+			if (state.queued >= maxQueuedPerFlow || queue.size() >= maxQueued) {
+				if (state.queued == 0 && state.finish <= virtualTime) {
+					flows.remove(flow);
+				}
+				return false;
+			}
+			double start = Math.max(virtualTime, state.finish);
+			state.finish = start + (double) Math.max(cost, 1) / Math.max(weight, 1);
+			if (running < slots && queue.isEmpty()) {
+				running++;
+				virtualTime = start;
+			} else {
+				state.queued++;
+				queue.add(new Task(state, start, sequence++, task));
+				return true;
+			}
+		}
+		task.run();
+		return true;
+	}
+
+	/**
+	 * Frees a slot, running the next admitted task if any are waiting.
+	 */
+	public void release() {
+		Task next;
+		synchronized (this) {
+			next = queue.poll();
+			if (next == null) {
+				running--;
+				// Idle flows have nothing left to be fair about.
+				flows.values().removeIf(flow -> flow.queued == 0 && flow.finish <= virtualTime);
+				return;
+			}
+			next.flow.queued--;
+			virtualTime = next.start;
+		}
+		next.task.run();
+	}
+
+	/**
+	 * @return How many tasks are currently waiting.
+	 */
+	public synchronized int queued() {
+		return queue.size();
+	}
+
+	/**
+	 * @return How many tasks are currently admitted.
+	 */
+	public synchronized int running() {
+		return running;
+	}
+
+	private static final class Flow {
+		private final Object key;
+		private double finish;
+		private int queued;
+
+		Flow(Object key) {
+			this.key = key;
+		}
+
+		@Override
+		public String toString() {
+			return "Flow{" + "key=" + key + ", finish=" + finish + ", queued=" + queued + '}';
+		}
+	}
+
+	private record Task(Flow flow, double start, long sequence, Runnable task) implements Comparable<Task> {
+		@Override
+		public int compareTo(Task o) {
+			int c = Double.compare(start, o.start);
+			return c != 0 ? c : Long.compare(sequence, o.sequence);
+		}
+	}
+}
@@ -0,0 +1,255 @@
+/* Copyright 2023 Ampflower
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package gay.ampflower.maven.concurrent;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free rate limiting and temporary banning of many keys, such as client
+ * addresses, in bounded memory.
+ * <p>
+ * Keys are hashed with a random seed into a fixed table of stripes, each
+ * paced by the generic cell rate algorithm as in {@link Throttle}. A stripe
+ * idle long enough is taken over by the next key hashed to it, while a busy
+ * one is shared, such that colliding keys are limited together rather than
+ * evicting each other.
+ * <p>
+ * Consecutive failures past a threshold ban the key, doubling the ban on
+ * each further failure up to a maximum. Failures are forgotten after going
+ * that maximum without any.
+ *
+ * @author Ampflower
+ * @since 0.1.0
+ */
+public final class Limiter {
+	private static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(long[].class);
+	private static final VarHandle INTS = MethodHandles.arrayElementVarHandle(int[].class);
+
+	private final long seed = new SecureRandom().nextLong();
+	private final int mask;
+	/**
+	 * Hash of the key each stripe belongs to, 0 if none.
+	 */
+	private final long[] owners;
+	/**
+	 * Theoretical arrival time of each stripe.
+	 */
+	private final long[] arrivals;
+	/**
+	 * When each stripe's ban is lifted.
+	 */
+	private final long[] bans;
+	/**
+	 * When each stripe last failed.
+	 */
+	private final long[] failed;
+	private final int[] failures;
+
+	private final long interval;
+	private final long tolerance;
+	private final int banAfter;
+	private final long banTime;
+	private final long banMax;
+
+	private final LongAdder admitted = new LongAdder();
+	private final LongAdder limited = new LongAdder();
+	private final LongAdder refused = new LongAdder();
+	private final LongAdder banned = new LongAdder();
+
+	/**
+	 * @param stripes  How many keys may be tracked apart, rounded up to a power
+	 *                 of two.
+	 * @param interval The sustained interval between attempts per key, in
+	 *                 nanoseconds.
+	 * @param burst    How many attempts may be made at once.
+	 * @param banAfter How many consecutive failures ban the key.
+	 * @param banTime  How long the first ban lasts, in nanoseconds.
+	 * @param banMax   How long a ban may last at most, in nanoseconds.
+	 */
+	public Limiter(int stripes, long interval, int burst, int banAfter, long banTime, long banMax) {
+		if (stripes <= 0 || interval <= 0 || burst <= 0 || banAfter <= 0) {
+			throw new IllegalArgumentException("stripes, interval, burst and banAfter must be positive");
+		}
+		int size = Integer.highestOneBit(Math.min(stripes, 1 << 30) - 1) << 1;
+		this.mask = Math.max(size, 1) - 1;
+		this.owners = new long[mask + 1];
+		this.arrivals = new long[mask + 1];
+		this.bans = new long[mask + 1];
+		this.failed = new long[mask + 1];
+		this.failures = new int[mask + 1];
+		this.interval = interval;
+		this.tolerance = (burst - 1) * interval;
+		this.banAfter = banAfter;
+		this.banTime = banTime;
+		this.banMax = Math.max(banTime, banMax);
+		final long now = System.nanoTime();
+		Arrays.fill(arrivals, now);
+		Arrays.fill(bans, now);
+		// Long enough ago that failures are already forgotten.
+		Arrays.fill(failed, now - this.banMax - 1);
+	}
+
+	/**
+	 * Attempts once for the key.
+	 *
+	 * @param key The key attempting, such as a client address.
+	 * @return 0 if the attempt may go ahead, else how many nanoseconds until
+	 *         the key may attempt again.
+	 */
+	public long acquire(CharSequence key) {
+		final long now = System.nanoTime();
+		final int slot = claim(hash(key), now);
+		final long ban = (long) LONGS.getVolatile(bans, slot);
+		if (ban - now > 0) {
+			refused.increment();
+			return ban - now;
+		}
+		long current, start;
+		do {
+			current = (long) LONGS.getVolatile(arrivals, slot);
+			// Time spent idle isn't banked, bursts are only allowed by the tolerance.
+			start = current - now > 0 ? current : now;
+			if (start - now > tolerance) {
+				limited.increment();
+				return start - now - tolerance;
+			}
+		} while (!LONGS.compareAndSet(arrivals, slot, current, start + interval));
+		admitted.increment();
+		return 0;
+	}
+
+	/**
+	 * @param key The key to check.
+	 * @return How many nanoseconds until the key may attempt again, or 0 if it
+	 *         may attempt now. Nothing is consumed.
+	 */
+	public long retryAfter(CharSequence key) {
+		final long now = System.nanoTime();
+		final int slot = index(hash(key));
+		final long ban = (long) LONGS.getVolatile(bans, slot) - now;
+		final long pace = (long) LONGS.getVolatile(arrivals, slot) - now - tolerance;
+		return Math.max(0, Math.max(ban, pace));
+	}
+
+	/**
+	 * Records a failed attempt, banning the key once it's failed too often.
+	 *
+	 * @param key The key that failed.
+	 */
+	public void failure(CharSequence key) {
+		final long now = System.nanoTime();
+		final int slot = claim(hash(key), now);
+		final long last = (long) LONGS.getAndSet(failed, slot, now);
+		int count;
+		if (now - last > banMax) {
+			INTS.setVolatile(failures, slot, 1);
+			count = 1;
+		} else {
+			count = (int) INTS.getAndAdd(failures, slot, 1) + 1;
+		}
+		if (count < banAfter) {
+			return;
+		}
+		final int doublings = count - banAfter;
+		// Shifting any further would overflow.
+		final long duration = doublings >= Long.numberOfLeadingZeros(banTime) - 1 ? banMax
+				: Math.min(banMax, banTime << doublings);
+		LONGS.setVolatile(bans, slot, now + duration);
+		banned.increment();
+	}
+
+	/**
+	 * Records a successful attempt, forgiving the key's failures.
+	 *
+	 * @param key The key that succeeded.
+	 */
+	public void success(CharSequence key) {
+		final long hash = hash(key);
+		final int slot = index(hash);
+		if ((long) LONGS.getVolatile(owners, slot) == hash) {
+			INTS.setVolatile(failures, slot, 0);
+		}
+	}
+
+	/**
+	 * Finds the key's stripe, taking it over if the previous key has gone idle.
+	 */
+	private int claim(long hash, long now) {
+		final int slot = index(hash);
+		final long owner = (long) LONGS.getVolatile(owners, slot);
+		if (owner != hash && idle(slot, now) && LONGS.compareAndSet(owners, slot, owner, hash)) {
+			INTS.setVolatile(failures, slot, 0);
+		}
+		return slot;
+	}
+
+	/**
+	 * @return true if the stripe is neither paced, banned nor remembering
+	 *         failures.
+	 */
+	private boolean idle(int slot, long now) {
+		return (long) LONGS.getVolatile(arrivals, slot) - now <= 0 && (long) LONGS.getVolatile(bans, slot) - now <= 0
+				&& now - (long) LONGS.getVolatile(failed, slot) > banMax;
+	}
+
+	private int index(long hash) {
+		return (int) (hash ^ (hash >>> 32)) & mask;
+	}
+
+	/**
+	 * Seeded FNV-1a, such that colliding keys can't be chosen ahead of time.
+	 */
+	private long hash(CharSequence key) {
+		long hash = 0xCBF29CE484222325L ^ seed;
+		for (int i = 0, l = key.length(); i < l; i++) {
+			hash = (hash ^ key.charAt(i)) * 0x100000001B3L;
+		}
+		// Final mix, as FNV's low bits are weak. Never 0, which marks no owner.
+		hash ^= hash >>> 33;
+		hash *= 0xFF51AFD7ED558CCDL;
+		hash ^= hash >>> 33;
+		return hash == 0 ? 1 : hash;
+	}
+
+	/**
+	 * @return How many attempts went ahead.
+	 */
+	public long admitted() {
+		return admitted.sum();
+	}
+
+	/**
+	 * @return How many attempts were turned away for going too fast.
+	 */
+	public long limited() {
+		return limited.sum();
+	}
+
+	/**
+	 * @return How many attempts were turned away for being banned.
+	 */
+	public long refused() {
+		return refused.sum();
+	}
+
+	/**
+	 * @return How many bans were issued.
+	 */
+	public long banned() {
+		return banned.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "Limiter{admitted=" + admitted() + ", limited=" + limited() + ", refused=" + refused() + ", banned="
+				+ banned() + '}';
+	}
+}
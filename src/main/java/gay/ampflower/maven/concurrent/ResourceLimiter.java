@@ -8,29 +8,41 @@ package gay.ampflower.maven.concurrent;
 
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.VarHandle;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.ArrayDeque;
 import java.util.concurrent.locks.LockSupport;
 
 /**
- * An overbuilt semaphore for limiting predictable memory usage.
+ * A fair semaphore for limiting predictable memory usage.
+ * <p>
+ * Leases are taken with a single compare and set while nobody is waiting.
+ * Otherwise they wait in line, and each release hands off to as many waiters
+ * at the head of the line as now fit, waking only those. A waiter that
+ * doesn't fit holds up those behind it, such that large leases aren't starved
+ * by small ones.
  *
  * @author Ampflower
  * @since 0.1.0
  */
 public final class ResourceLimiter {
 	@SuppressWarnings("unused") // Used by VarHandle
-	private volatile long _allocated;
-	private final ThreadLocal<Long> allocations = new ThreadLocal<>();
-	private final Queue<Hold> threads = new ConcurrentLinkedQueue<>();
+	private volatile long _available;
+	/**
+	 * How many are waiting in line, read without locking to skip the line when
+	 * empty.
+	 */
+	private volatile int waiting;
+	/**
+	 * Guarded by itself.
+	 */
+	private final ArrayDeque<Hold> threads = new ArrayDeque<>();
 	private final long limit;
 
-	private static final VarHandle allocated;
+	private static final VarHandle available;
 
 	static {
 		try {
 			var lookup = MethodHandles.lookup();
-			allocated = lookup.findVarHandle(ResourceLimiter.class, "_allocated", long.class);
+			available = lookup.findVarHandle(ResourceLimiter.class, "_available", long.class);
 		} catch (ReflectiveOperationException roe) {
 			throw new ExceptionInInitializerError(roe);
 		}
@@ -46,86 +58,212 @@ public final class ResourceLimiter {
 		if (limit < expected) {
 			throw new OutOfMemoryError("JVM cannot provide " + expected + " with JVM heap " + limit);
 		}
+		this._available = limit;
 	}
 
 	/**
-	 * Acquires a lease for a given amount of memory.
+	 * Acquires a lease for a given amount of memory, waiting for as long as it
+	 * takes.
 	 *
 	 * @param memory The amount of memory to lease.
+	 * @return The lease, to be closed when done.
 	 * @throws InterruptedException If the thread was interrupted while parked.
 	 */
-	public void acquire(long memory) throws InterruptedException {
+	public Lease acquire(long memory) throws InterruptedException {
+		return tryAcquire(memory, 0, false);
+	}
+
+	/**
+	 * Acquires a lease for a given amount of memory, unless it's not available
+	 * by the deadline.
+	 *
+	 * @param memory   The amount of memory to lease.
+	 * @param deadline When to give up by, by {@link System#nanoTime()}.
+	 * @return The lease, to be closed when done, or null if it wasn't available
+	 *         in time.
+	 * @throws InterruptedException If the thread was interrupted while parked.
+	 */
+	public Lease tryAcquire(long memory, long deadline) throws InterruptedException {
+		return tryAcquire(memory, deadline, true);
+	}
+
+	private Lease tryAcquire(long memory, long deadline, boolean timed) throws InterruptedException {
 		if (memory > limit) {
 			throw new OutOfMemoryError("Cannot provide " + memory + " with limit " + limit);
 		}
-		if (!tryLease(memory)) {
-			hold(memory);
+		if (waiting == 0 && take(memory)) {
+			return lease(memory);
+		}
+		final Hold hold;
+		synchronized (threads) {
+			// Counted before trying again, such that a release either sees this
+			// waiting or this sees what was released.
+			waiting++;
+			if (threads.isEmpty() && take(memory)) {
+				waiting--;
+				return lease(memory);
+			}
+			hold = new Hold(memory);
+			threads.add(hold);
 		}
-		allocations.set(memory);
+		hold(hold, deadline, timed);
+		return hold.granted ? lease(memory) : null;
 	}
 
 	/**
-	 * Releases a lease for a given amount of memory.
-	 *
-	 * @implNote This also attempts to wake any waiting threads in the process.
+	 * Releases a lease, handing off to whoever now fits.
 	 */
-	public void release() {
-		Long l = allocations.get();
-		if (l == null)
-			return;
-		allocated.getAndAdd(this, -l);
-		allocations.remove();
-		wake();
+	private void release(long memory) {
+		available.getAndAdd(this, memory);
+		if (waiting != 0) {
+			synchronized (threads) {
+				wake();
+			}
+		}
+	}
+
+	/**
+	 * @return How much memory is currently not leased.
+	 */
+	public long available() {
+		return (long) available.getVolatile(this);
+	}
+
+	/**
+	 * @return How many are currently waiting for a lease.
+	 */
+	public int waiting() {
+		return waiting;
 	}
 
 	/**
-	 * Attempts to lease {@code memory}
+	 * Takes {@code memory} if there's enough left, without ever going over the
+	 * limit in the meantime.
 	 *
 	 * @param memory The amount of memory to lease.
-	 * @return {@code true} if the new amount is below the limit, false otherwise.
+	 * @return {@code true} if taken, false otherwise.
 	 */
-	private boolean tryLease(long memory) {
-		final var j = (long) allocated.getAndAdd(this, memory);
-		if (j + memory > limit) {
-			allocated.getAndAdd(this, -memory);
-			return false;
-		}
+	private boolean take(long memory) {
+		long current;
+		do {
+			current = (long) available.getVolatile(this);
+			if (current < memory) {
+				return false;
+			}
+		} while (!available.compareAndSet(this, current, current - memory));
 		return true;
 	}
 
-	/** Parks the thread, waiting for given {@code memory} amount to be freed. */
-	private void hold(long memory) throws InterruptedException {
-		final var hold = new Hold(memory);
-		if (!threads.offer(hold)) {
-			throw new IllegalStateException();
+	private Lease lease(long memory) {
+		return new Lease(this, memory);
+	}
+
+	/**
+	 * Parks the thread until its hold is granted, or it times out.
+	 */
+	private void hold(Hold hold, long deadline, boolean timed) throws InterruptedException {
+		while (!hold.granted) {
+			if (timed) {
+				final long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					break;
+				}
+				LockSupport.parkNanos(this, remaining);
+			} else {
+				LockSupport.park(this);
+			}
+			if (Thread.currentThread().isInterrupted()) {
+				break;
+			}
 		}
-		do {
-			LockSupport.park(this);
-		} while (!Thread.currentThread().isInterrupted() && !hold.released);
-		if (Thread.interrupted()) {
+		if (hold.granted) {
+			// Kept even if interrupted, as the lease is cheaper to give than to undo.
+			return;
+		}
+		synchronized (threads) {
+			if (!hold.granted) {
+				hold.cancelled = true;
+				// Whoever was behind it may fit now.
+				wake();
+			}
+		}
+		if (!hold.granted && Thread.interrupted()) {
 			throw new InterruptedException();
 		}
 	}
 
-	/** Wakes up any threads able to compute within memory constraints. */
+	/**
+	 * Hands off to the waiters at the head of the line that now fit. Must be
+	 * called while holding the lock.
+	 */
 	private void wake() {
-		if (threads.isEmpty())
-			return;
-		final var itr = threads.iterator();
-		while (itr.hasNext()) {
-			final var hold = itr.next();
-			if (tryLease(hold.memory)) {
-				hold.released = true;
+		Hold hold;
+		while ((hold = threads.peek()) != null) {
+			if (!hold.cancelled) {
+				if (!take(hold.memory)) {
+					return;
+				}
+				hold.granted = true;
 				LockSupport.unpark(hold.thread);
-				itr.remove();
 			}
+			threads.poll();
+			waiting--;
+		}
+	}
+
+	/**
+	 * A lease of memory, released by closing it. Closing it again does nothing.
+	 */
+	public static final class Lease implements AutoCloseable {
+		private final ResourceLimiter limiter;
+		private final long memory;
+		@SuppressWarnings("unused") // Used by VarHandle
+		private volatile boolean _closed;
+
+		private static final VarHandle closed;
+
+		static {
+			try {
+				var lookup = MethodHandles.lookup();
+				closed = lookup.findVarHandle(Lease.class, "_closed", boolean.class);
+			} catch (ReflectiveOperationException roe) {
+				throw new ExceptionInInitializerError(roe);
+			}
+		}
+
+		private Lease(ResourceLimiter limiter, long memory) {
+			this.limiter = limiter;
+			this.memory = memory;
+		}
+
+		/**
+		 * @return The amount of memory leased.
+		 */
+		public long memory() {
+			return memory;
+		}
+
+		@Override
+		public void close() {
+			if (closed.compareAndSet(this, false, true)) {
+				limiter.release(memory);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "Lease{" + "memory=" + memory + '}';
 		}
 	}
 
 	private static class Hold {
 		private final long memory;
 		private final Thread thread;
-		private volatile boolean released;
+		private volatile boolean granted;
+		/**
+		 * Guarded by the line.
+		 */
+		private boolean cancelled;
 
 		Hold(long memory) {
 			this.memory = memory;
@@ -134,7 +272,7 @@ public final class ResourceLimiter {
 
 		@Override
 		public String toString() {
-			return "Hold{" + "memory=" + memory + ", thread=" + thread + ", released=" + released + '}';
+			return "Hold{" + "memory=" + memory + ", thread=" + thread + ", granted=" + granted + '}';
 		}
 	}
 }
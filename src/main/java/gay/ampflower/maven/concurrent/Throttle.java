@@ -0,0 +1,72 @@
+/* Copyright 2023 Ampflower
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package gay.ampflower.maven.concurrent;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lock-free pacing of a rate, such as bytes per second.
+ * <p>
+ * Implemented as the generic cell rate algorithm: rather than counting
+ * tokens, it tracks the theoretical time at which everything consumed so far
+ * would have arrived at the configured rate. Callers too far ahead of it are
+ * told how long to back off.
+ *
+ * @author Ampflower
+ * @since 0.1.0
+ */
+public final class Throttle {
+	@SuppressWarnings("unused") // Used by VarHandle
+	private volatile long _arrival;
+	private final double nanosPerUnit;
+	private final long tolerance;
+
+	private static final VarHandle arrival;
+
+	static {
+		try {
+			var lookup = MethodHandles.lookup();
+			arrival = lookup.findVarHandle(Throttle.class, "_arrival", long.class);
+		} catch (ReflectiveOperationException roe) {
+			throw new ExceptionInInitializerError(roe);
+		}
+	}
+
+	/**
+	 * @param rate  The sustained rate, in units per second.
+	 * @param burst How far ahead of the rate callers may go before backing off.
+	 */
+	public Throttle(long rate, long burst) {
+		if (rate <= 0) {
+			throw new IllegalArgumentException("rate must be positive: " + rate);
+		}
+		this.nanosPerUnit = (double) TimeUnit.SECONDS.toNanos(1) / rate;
+		this.tolerance = (long) (burst * nanosPerUnit);
+		this._arrival = System.nanoTime();
+	}
+
+	/**
+	 * Consumes {@code amount} units, regardless of whether the caller is ahead.
+	 *
+	 * @param amount The units consumed.
+	 * @return How many nanoseconds the caller should wait before consuming more,
+	 *         or 0 if it may continue immediately.
+	 */
+	public long acquire(long amount) {
+		final long cost = (long) (amount * nanosPerUnit);
+		final long now = System.nanoTime();
+		long current, next;
+		do {
+			current = (long) arrival.getVolatile(this);
+			// Time spent idle isn't banked, bursts are only allowed by the tolerance.
+			next = (current - now > 0 ? current : now) + cost;
+		} while (!arrival.compareAndSet(this, current, next));
+		return Math.max(0, next - now - tolerance);
+	}
+}
@@ -0,0 +1,31 @@
+/* Copyright 2023 Ampflower
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package gay.ampflower.maven.hook;
+
+import java.time.Instant;
+import java.util.Map;
+
+/**
+ * A file having been published into a repository.
+ *
+ * @param time    When the file was published.
+ * @param host    The host the file was uploaded to, or null for the default.
+ * @param user    The user who uploaded the file.
+ * @param path    The path of the file within the repository, starting with
+ *                {@code /}.
+ * @param size    The size of the file in bytes.
+ * @param digests Lowercase hex digests of the file by algorithm, named as
+ *                their sidecars are, such as {@code sha1}.
+ * @author Ampflower
+ * @since 0.1.0
+ */
+public record UploadEvent(Instant time, String host, String user, String path, long size,
+		Map<String, String> digests) {
+	public UploadEvent {
+		digests = Map.copyOf(digests);
+	}
+}
@@ -0,0 +1,31 @@
+/* Copyright 2023 Ampflower
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package gay.ampflower.maven.hook;
+
+/**
+ * Runs after every file published, off of the request that published it.
+ * <p>
+ * Hooks on the classpath are found through {@link java.util.ServiceLoader},
+ * alongside any commands configured in the {@code [hooks]} section of
+ * {@code config.ini}.
+ * <p>
+ * Events are delivered once, save for events spilled to disk, which may be
+ * delivered again if the server stops while delivering them. A hook that
+ * fails isn't retried.
+ *
+ * @author Ampflower
+ * @since 0.1.0
+ */
+@FunctionalInterface
+public interface UploadHook {
+	/**
+	 * Handles an event, blocking for as long as needed.
+	 *
+	 * @throws Exception If the hook failed, which is logged.
+	 */
+	void accept(UploadEvent event) throws Exception;
+}
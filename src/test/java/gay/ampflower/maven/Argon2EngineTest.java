@@ -0,0 +1,103 @@
+/* Copyright 2023 Ampflower
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package gay.ampflower.maven;
+
+import org.bouncycastle.crypto.generators.Argon2BytesGenerator;
+import org.bouncycastle.crypto.params.Argon2Parameters;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+/**
+ * Checks {@link Argon2Engine} bit for bit against Bouncy Castle's reference,
+ * such that hashes stored by either verify with the other.
+ *
+ * @author Ampflower
+ * @since 0.1.0
+ */
+class Argon2EngineTest {
+	private static final int SETS = 100;
+	private static final int[] TYPES = { Argon2Parameters.ARGON2_d, Argon2Parameters.ARGON2_i,
+			Argon2Parameters.ARGON2_id };
+	private static final int[] VERSIONS = { Argon2Parameters.ARGON2_VERSION_10, Argon2Parameters.ARGON2_VERSION_13 };
+
+	@AfterEach
+	void restore() {
+		Argon2Engine.help(Runtime.getRuntime().availableProcessors() - 1);
+	}
+
+	@Test
+	void sequential() {
+		compare(0);
+	}
+
+	@Test
+	void oneHelper() {
+		compare(1);
+	}
+
+	@Test
+	void twoHelpers() {
+		compare(2);
+	}
+
+	@Test
+	void threeHelpers() {
+		compare(3);
+	}
+
+	/**
+	 * Hashes random parameter sets with both, the seed being reported to
+	 * reproduce any mismatch.
+	 */
+	private static void compare(int helpers) {
+		Argon2Engine.help(helpers);
+		final long seed = ThreadLocalRandom.current().nextLong();
+		var random = new Random(seed);
+		for (int set = 0; set < SETS; set++) {
+			final int lanes = 1 + random.nextInt(5);
+			// Now and then below the minimum of 8 blocks per lane.
+			final int memory = random.nextInt(4) == 0 ? 2 * lanes + random.nextInt(6 * lanes)
+					: 8 * lanes + random.nextInt(300);
+			var builder = new Argon2Parameters.Builder(TYPES[random.nextInt(TYPES.length)])
+					.withVersion(VERSIONS[random.nextInt(VERSIONS.length)]).withMemoryAsKB(memory)
+					.withIterations(1 + random.nextInt(3)).withParallelism(lanes).withSalt(bytes(random, 8, 24));
+			if (random.nextBoolean()) {
+				builder.withSecret(bytes(random, 0, 64));
+			}
+			if (random.nextInt(4) == 0) {
+				builder.withAdditional(bytes(random, 0, 32));
+			}
+			var params = builder.build();
+			var password = bytes(random, 0, 40);
+			final int length = random.nextInt(3) == 0 ? 4 + random.nextInt(200) : 32;
+
+			var expected = new byte[length];
+			var generator = new Argon2BytesGenerator();
+			generator.init(params);
+			generator.generateBytes(password.clone(), expected);
+
+			var actual = new byte[length];
+			Argon2.execute(params, password.clone(), actual);
+
+			assertArrayEquals(expected, actual,
+					"seed=" + seed + ", set=" + set + ", helpers=" + helpers + ", type=" + params.getType()
+							+ ", version=" + params.getVersion() + ", m=" + memory + ", t=" + params.getIterations()
+							+ ", p=" + lanes + ", length=" + length);
+		}
+	}
+
+	private static byte[] bytes(Random random, int min, int max) {
+		var bytes = new byte[min + random.nextInt(max - min)];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+}
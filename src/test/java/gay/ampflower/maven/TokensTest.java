@@ -0,0 +1,164 @@
+/* Copyright 2023 Ampflower
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package gay.ampflower.maven;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that {@link Tokens} only verify unaltered, unexpired and unrevoked
+ * tokens on the host and generation they were minted for.
+ *
+ * @author Ampflower
+ * @since 0.1.0
+ */
+class TokensTest {
+	private static final String HOST = "maven.example";
+	private static final Duration TTL = Duration.ofMinutes(5);
+
+	@TempDir
+	Path store;
+
+	@Test
+	void verifies() {
+		var config = config("verifies");
+		var token = Tokens.verify(snapshot(config), HOST, mint(config, "verifies", Tokens.prefix("com/example")));
+		assertNotNull(token);
+		assertEquals(HOST, token.host());
+		assertEquals("verifies", token.user());
+		assertEquals("/com/example/", token.prefix());
+		assertTrue(token.permits("/com/example/a/1/a-1.jar"));
+		assertFalse(token.permits("/com/examples/a/1/a-1.jar"));
+		assertFalse(token.permits("/com/example/../../org/a/1/a-1.jar"));
+	}
+
+	@Test
+	void tampered() {
+		var config = config("tampered");
+		var snapshot = snapshot(config);
+		var token = mint(config, "tampered", "/com/example/");
+		final int dot = token.indexOf('.');
+		var payload = Base64.getUrlDecoder().decode(token.substring(0, dot));
+		var signature = Base64.getUrlDecoder().decode(token.substring(dot + 1));
+		var encoder = Base64.getUrlEncoder().withoutPadding();
+
+		// Widens the prefix from /com/example/ to /com/example.
+		payload[payload.length - 1] = '.';
+		assertNull(Tokens.verify(snapshot, HOST, encoder.encodeToString(payload) + token.substring(dot)));
+		signature[0] ^= 1;
+		assertNull(Tokens.verify(snapshot, HOST, token.substring(0, dot + 1) + encoder.encodeToString(signature)));
+		assertNull(Tokens.verify(snapshot, HOST, token.substring(0, dot)));
+		assertNull(Tokens.verify(snapshot, HOST, "not.base64!"));
+	}
+
+	@Test
+	void wrongHost() {
+		var config = config("wrongHost");
+		config.createHost(null, store.resolve("global"));
+		config.hosts.get(null).users.put("wrongHost", "$argon2id$global");
+		var snapshot = snapshot(config);
+
+		var token = mint(config, "wrongHost", "/");
+		assertNotNull(Tokens.verify(snapshot, HOST, token));
+		assertNull(Tokens.verify(snapshot, "other.example", token));
+
+		var global = Tokens.mint(null, config.hosts.get(null), "wrongHost", "/", TTL);
+		assertNotNull(Tokens.verify(snapshot, "other.example", global));
+		assertNull(Tokens.verify(snapshot, HOST, global));
+	}
+
+	@Test
+	void expired() {
+		var config = config("expired");
+		var token = Tokens.mint(HOST, config.hosts.get(HOST), "expired", "/", Duration.ZERO);
+		assertNull(Tokens.verify(snapshot(config), HOST, token));
+	}
+
+	@Test
+	void revoke() {
+		var config = config("revoke");
+		var snapshot = snapshot(config);
+		var first = mint(config, "revoke", "/");
+		var second = mint(config, "revoke", "/");
+
+		Tokens.revoke(Tokens.verify(snapshot, HOST, first));
+		assertNull(Tokens.verify(snapshot, HOST, first));
+		assertNotNull(Tokens.verify(snapshot, HOST, second));
+	}
+
+	@Test
+	void revokeAll() throws InterruptedException {
+		var config = config("revokeAll");
+		var snapshot = snapshot(config);
+		var first = mint(config, "revokeAll", "/");
+		var second = mint(config, "revokeAll", "/");
+
+		Tokens.revokeAll(HOST, "revokeAll");
+		assertNull(Tokens.verify(snapshot, HOST, first));
+		assertNull(Tokens.verify(snapshot, HOST, second));
+
+		// One minted within the same millisecond as revoking would be refused too.
+		Thread.sleep(2);
+		assertNotNull(Tokens.verify(snapshot, HOST, mint(config, "revokeAll", "/")));
+	}
+
+	@Test
+	void generation() {
+		var config = config("generation");
+		config.cost(new Argon2.Cost(64, 1, 1));
+		config.authorize(HOST, "generation", "password".toCharArray());
+		var token = mint(config, "generation", "/");
+		assertNotNull(Tokens.verify(snapshot(config), HOST, token));
+
+		// Rehashing at a new cost keeps the generation.
+		config.hosts.get(HOST).users.put("generation", "$argon2id$rehashed");
+		assertNotNull(Tokens.verify(snapshot(config), HOST, token));
+
+		config.authorize(HOST, "generation", "password".toCharArray());
+		assertNull(Tokens.verify(snapshot(config), HOST, token));
+		assertNotNull(Tokens.verify(snapshot(config), HOST, mint(config, "generation", "/")));
+	}
+
+	@Test
+	void prefix() {
+		assertEquals("/", Tokens.prefix(null));
+		assertEquals("/", Tokens.prefix(" "));
+		assertEquals("/com/example/", Tokens.prefix("com/example"));
+		assertEquals("/com/example/", Tokens.prefix(" /com/example/ "));
+		assertThrows(IllegalArgumentException.class, () -> Tokens.prefix(".."));
+		assertThrows(IllegalArgumentException.class, () -> Tokens.prefix("/com/../org"));
+		assertThrows(IllegalArgumentException.class, () -> Tokens.prefix("./com"));
+		assertEquals("/com/..example/", Tokens.prefix("com/..example"));
+	}
+
+	private Config config(String user) {
+		var config = new Config(store);
+		config.createHost(HOST, store.resolve("maven"));
+		config.hosts.get(HOST).users.put(user, "$argon2id$" + user);
+		return config;
+	}
+
+	private static Snapshot snapshot(Config config) {
+		return new Snapshot(config, Set.of());
+	}
+
+	private static String mint(Config config, String user, String prefix) {
+		return Tokens.mint(HOST, config.hosts.get(HOST), user, prefix, TTL);
+	}
+}
@@ -0,0 +1,183 @@
+/* Copyright 2023 Ampflower
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package gay.ampflower.maven.concurrent;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that {@link ResourceLimiter} hands off in line, gives up cleanly and
+ * never loses nor makes up memory under contention.
+ *
+ * @author Ampflower
+ * @since 0.1.0
+ */
+class ResourceLimiterTest {
+	private static final long LIMIT = 16;
+	private static final int THREADS = 8;
+	private static final int ROUNDS = 20_000;
+
+	@Test
+	void largeNotStarved() throws Exception {
+		var limiter = new ResourceLimiter(LIMIT, LIMIT);
+		var first = limiter.acquire(LIMIT - 2);
+		var large = acquire(limiter, LIMIT);
+		awaitWaiting(limiter, 1);
+		// Would fit, but must wait behind the large lease.
+		var small = acquire(limiter, 1);
+		awaitWaiting(limiter, 2);
+		assertEquals(2, limiter.available());
+		assertFalse(small.isDone());
+
+		first.close();
+		try (var lease = large.get(5, TimeUnit.SECONDS)) {
+			assertEquals(LIMIT, lease.memory());
+			assertEquals(0, limiter.available());
+			assertFalse(small.isDone());
+		}
+		small.get(5, TimeUnit.SECONDS).close();
+		assertEquals(LIMIT, limiter.available());
+		assertEquals(0, limiter.waiting());
+	}
+
+	@Test
+	void handOffToAllThatFit() throws Exception {
+		var limiter = new ResourceLimiter(LIMIT, LIMIT);
+		var first = limiter.acquire(LIMIT);
+		var a = acquire(limiter, LIMIT / 2);
+		awaitWaiting(limiter, 1);
+		var b = acquire(limiter, LIMIT / 2);
+		awaitWaiting(limiter, 2);
+		var c = acquire(limiter, 1);
+		awaitWaiting(limiter, 3);
+
+		first.close();
+		var leaseA = a.get(5, TimeUnit.SECONDS);
+		var leaseB = b.get(5, TimeUnit.SECONDS);
+		assertEquals(1, limiter.waiting());
+		assertFalse(c.isDone());
+
+		leaseA.close();
+		c.get(5, TimeUnit.SECONDS).close();
+		leaseB.close();
+		assertEquals(LIMIT, limiter.available());
+		assertEquals(0, limiter.waiting());
+	}
+
+	@Test
+	void timeoutUnblocksLine() throws Exception {
+		var limiter = new ResourceLimiter(LIMIT, LIMIT);
+		var first = limiter.acquire(LIMIT / 2);
+		var timed = submit(
+				() -> limiter.tryAcquire(LIMIT, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(200)));
+		awaitWaiting(limiter, 1);
+		var behind = acquire(limiter, LIMIT / 2);
+		awaitWaiting(limiter, 2);
+
+		assertNull(timed.get(5, TimeUnit.SECONDS));
+		// Granted by the timeout alone, nothing having been released.
+		try (var lease = behind.get(5, TimeUnit.SECONDS)) {
+			assertEquals(0, limiter.available());
+			assertEquals(0, limiter.waiting());
+		}
+		first.close();
+		assertEquals(LIMIT, limiter.available());
+	}
+
+	@Test
+	void closeIsIdempotent() throws Exception {
+		var limiter = new ResourceLimiter(LIMIT, LIMIT);
+		var first = limiter.acquire(LIMIT);
+		var second = acquire(limiter, LIMIT);
+		awaitWaiting(limiter, 1);
+
+		first.close();
+		var lease = second.get(5, TimeUnit.SECONDS);
+		first.close();
+		assertEquals(0, limiter.available());
+
+		lease.close();
+		lease.close();
+		assertEquals(LIMIT, limiter.available());
+	}
+
+	/**
+	 * Races releases against threads joining the line, which would hang on a
+	 * lost wakeup, or show up as memory over the limit or left over.
+	 */
+	@Test
+	void contended() throws Exception {
+		var limiter = new ResourceLimiter(LIMIT, LIMIT);
+		var leased = new AtomicLong();
+		var futures = new ArrayList<Future<?>>();
+		final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			for (int i = 0; i < THREADS; i++) {
+				futures.add(executor.submit(() -> {
+					var random = ThreadLocalRandom.current();
+					for (int round = 0; round < ROUNDS; round++) {
+						final long memory = 1 + random.nextLong(LIMIT);
+						var lease = random.nextInt(4) == 0
+								? limiter.tryAcquire(memory, System.nanoTime() + random.nextLong(100_000))
+								: limiter.acquire(memory);
+						if (lease == null) {
+							continue;
+						}
+						try (lease) {
+							final long total = leased.addAndGet(memory);
+							assertTrue(total <= LIMIT, "leased " + total + " over " + LIMIT);
+							Thread.onSpinWait();
+							leased.addAndGet(-memory);
+						}
+					}
+					return null;
+				}));
+			}
+			for (var future : futures) {
+				future.get(1, TimeUnit.MINUTES);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(LIMIT, limiter.available());
+		assertEquals(0, limiter.waiting());
+	}
+
+	private static Future<ResourceLimiter.Lease> acquire(ResourceLimiter limiter, long memory) {
+		return submit(() -> limiter.acquire(memory));
+	}
+
+	private static <T> Future<T> submit(Callable<T> callable) {
+		var task = new FutureTask<>(callable);
+		var thread = new Thread(task);
+		thread.setDaemon(true);
+		thread.start();
+		return task;
+	}
+
+	private static void awaitWaiting(ResourceLimiter limiter, int waiting) throws InterruptedException {
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (limiter.waiting() != waiting && System.nanoTime() < deadline) {
+			Thread.sleep(1);
+		}
+		assertEquals(waiting, limiter.waiting());
+	}
+}